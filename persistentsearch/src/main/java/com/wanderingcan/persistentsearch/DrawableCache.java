@@ -0,0 +1,136 @@
+/*
+ * Copyright 2015 Christopher Beda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.wanderingcan.persistentsearch;
+
+import android.content.Context;
+import android.content.res.ColorStateList;
+import android.graphics.PorterDuff.Mode;
+import android.graphics.drawable.Drawable;
+import android.support.annotation.DrawableRes;
+import android.support.v4.content.ContextCompat;
+import android.support.v4.graphics.drawable.DrawableCompat;
+import android.util.SparseArray;
+
+import java.util.HashMap;
+
+/**
+ * Caches the ConstantStates of the drawable resources used by SearchMenuItems, so every item
+ * that shows the same icon creates its Drawable from the same state instead of loading the
+ * resource again. Tinted icons are cached by their resource, tint and tint mode.
+ * <p>
+ * The Drawables that are returned share their state, so they must be mutated before they
+ * are changed. The cache is synchronized, as SearchMenuItems can be created on any thread.
+ * </p>
+ */
+class DrawableCache {
+
+    private final Context mContext;
+    private final SparseArray<Drawable.ConstantState> mStates = new SparseArray<>();
+    private final HashMap<TintKey, Drawable.ConstantState> mTintedStates = new HashMap<>();
+
+    DrawableCache(Context context){
+        mContext = context;
+    }
+
+    /**
+     * Gets a Drawable for the resource
+     * @param resId The resource id of the drawable
+     * @return A new Drawable that shares its state with the cached one
+     */
+    synchronized Drawable get(@DrawableRes int resId){
+        Drawable.ConstantState state = mStates.get(resId);
+        if(state == null){
+            Drawable drawable = ContextCompat.getDrawable(mContext, resId);
+            state = drawable.getConstantState();
+            if(state == null){
+                //The drawable can not be shared, so it can not be cached
+                return drawable;
+            }
+            mStates.put(resId, state);
+            return drawable;
+        }
+        return state.newDrawable(mContext.getResources());
+    }
+
+    /**
+     * Gets a tinted Drawable for the resource
+     * @param resId The resource id of the drawable
+     * @param tint The tint, or null for no tint
+     * @param mode The tint mode, or null for the default mode
+     * @return A new Drawable that shares its state with the cached one
+     */
+    synchronized Drawable get(@DrawableRes int resId, ColorStateList tint, Mode mode){
+        if(tint == null && mode == null){
+            return get(resId);
+        }
+        TintKey key = new TintKey(resId, tint, mode);
+        Drawable.ConstantState state = mTintedStates.get(key);
+        if(state != null){
+            return state.newDrawable(mContext.getResources());
+        }
+        //Mutated so the tint does not change the untinted Drawables
+        Drawable drawable = DrawableCompat.wrap(get(resId).mutate());
+        if(tint != null){
+            DrawableCompat.setTintList(drawable, tint);
+        }
+        if(mode != null){
+            DrawableCompat.setTintMode(drawable, mode);
+        }
+        state = drawable.getConstantState();
+        if(state != null){
+            mTintedStates.put(key, state);
+        }
+        return drawable;
+    }
+
+    private static class TintKey {
+
+        private final int mResId;
+        private final Object mTint;
+        private final Mode mMode;
+
+        TintKey(int resId, ColorStateList tint, Mode mode){
+            mResId = resId;
+            //Tints made with ColorStateList.valueOf() are equal if they have the same color
+            mTint = tint == null || tint.isStateful()
+                    ? tint : Integer.valueOf(tint.getDefaultColor());
+            mMode = mode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(this == o){
+                return true;
+            }
+            if(!(o instanceof TintKey)){
+                return false;
+            }
+            TintKey other = (TintKey) o;
+            return mResId == other.mResId && mMode == other.mMode
+                    && (mTint == null ? other.mTint == null : mTint.equals(other.mTint));
+        }
+
+        @Override
+        public int hashCode() {
+            int result = mResId;
+            result = 31 * result + (mTint != null ? mTint.hashCode() : 0);
+            result = 31 * result + (mMode != null ? mMode.hashCode() : 0);
+            return result;
+        }
+    }
+}
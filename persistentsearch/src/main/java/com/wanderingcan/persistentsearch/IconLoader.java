@@ -0,0 +1,200 @@
+/*
+ * Copyright 2015 Christopher Beda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.wanderingcan.persistentsearch;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Build;
+import android.support.v4.os.CancellationSignal;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+/**
+ * Loads the icons of SearchMenuItems from Uris on a background thread. The images are
+ * downsampled to about the size of the icon, and on API 19 and up they are decoded into
+ * Bitmaps that rows are done with, instead of allocating new ones.
+ */
+class IconLoader {
+    private static final String TAG = "IconLoader";
+    private static final int MAX_POOL_SIZE = 12;
+    private static final int BYTES_PER_PIXEL = 4;
+
+    private final ContentResolver mResolver;
+    private final int mIconSize;
+    private final ArrayList<Bitmap> mPool = new ArrayList<>();
+
+    IconLoader(Context context){
+        mResolver = context.getContentResolver();
+        mIconSize = context.getResources()
+                .getDimensionPixelSize(R.dimen.persistent_search_view_menu_item_icon);
+    }
+
+    /**
+     * Loads the icon on a background thread. Must be called on the main thread.
+     * @param uri The Uri of the image, a file or content Uri
+     * @param callback Called on the main thread with the loaded icon, unless the load is
+     *                 canceled first. It is not called if the image can not be loaded.
+     * @return The signal to cancel the load with, from the main thread
+     */
+    CancellationSignal load(final Uri uri, final Callback callback){
+        final CancellationSignal signal = new CancellationSignal();
+        SearchExecutors.icons().execute(new Runnable() {
+            @Override
+            public void run() {
+                if(signal.isCanceled()){
+                    return;
+                }
+                final Bitmap bitmap = decode(uri, signal);
+                if(bitmap == null){
+                    return;
+                }
+                SearchExecutors.mainThread().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        //Canceling happens on the main thread, so it can't change after this check
+                        if(signal.isCanceled()){
+                            release(bitmap);
+                        }else{
+                            callback.onIconLoaded(bitmap);
+                        }
+                    }
+                });
+            }
+        });
+        return signal;
+    }
+
+    /**
+     * Gives back a Bitmap from {@link Callback#onIconLoaded(Bitmap)} that is no longer shown,
+     * so later icons can be decoded into it
+     * @param bitmap The Bitmap that is no longer used
+     */
+    void release(Bitmap bitmap){
+        if(Build.VERSION.SDK_INT < 19 || !bitmap.isMutable() || bitmap.isRecycled()){
+            return;
+        }
+        synchronized(mPool){
+            if(mPool.size() < MAX_POOL_SIZE){
+                mPool.add(bitmap);
+            }
+        }
+    }
+
+    /**
+     * Takes the smallest pooled Bitmap that the decoded image fits in
+     * @param byteCount The number of bytes the decoded image needs
+     * @return The Bitmap, or null if none is big enough
+     */
+    @TargetApi(19)
+    private Bitmap acquire(int byteCount){
+        synchronized(mPool){
+            int best = -1;
+            for(int i = 0; i < mPool.size(); i++){
+                int size = mPool.get(i).getAllocationByteCount();
+                if(size >= byteCount
+                        && (best == -1 || size < mPool.get(best).getAllocationByteCount())){
+                    best = i;
+                }
+            }
+            return best == -1 ? null : mPool.remove(best);
+        }
+    }
+
+    private Bitmap decode(Uri uri, CancellationSignal signal){
+        try {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            decodeStream(uri, options);
+            if(options.outWidth <= 0 || options.outHeight <= 0 || signal.isCanceled()){
+                return null;
+            }
+
+            int sampleSize = calculateSampleSize(options.outWidth, options.outHeight);
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = sampleSize;
+            if(Build.VERSION.SDK_INT >= 19){
+                //Some decoders round the sampled size up, so the larger size is used
+                int width = (options.outWidth + sampleSize - 1) / sampleSize;
+                int height = (options.outHeight + sampleSize - 1) / sampleSize;
+                options.inMutable = true;
+                options.inBitmap = acquire(width * height * BYTES_PER_PIXEL);
+            }
+
+            Bitmap bitmap;
+            try {
+                bitmap = decodeStream(uri, options);
+            } catch (IllegalArgumentException e){
+                //The pooled Bitmap could not be decoded into, so it goes back for another image
+                if(options.inBitmap == null){
+                    throw e;
+                }
+                release(options.inBitmap);
+                options.inBitmap = null;
+                bitmap = decodeStream(uri, options);
+            }
+            if(bitmap == null && options.inBitmap != null){
+                release(options.inBitmap);
+            }
+            return bitmap;
+        } catch (IOException | SecurityException | IllegalArgumentException e){
+            Log.w(TAG, "Unable to load the icon " + uri, e);
+            return null;
+        }
+    }
+
+    private Bitmap decodeStream(Uri uri, BitmapFactory.Options options) throws IOException {
+        InputStream in = mResolver.openInputStream(uri);
+        if(in == null){
+            throw new IOException("Unable to open " + uri);
+        }
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Finds the largest power of two to downsample by, that keeps the longer side of the image
+     * at least as big as the icon, since the icon is scaled to fit in the icon's square
+     */
+    private int calculateSampleSize(int width, int height){
+        int longerSide = Math.max(width, height);
+        int sampleSize = 1;
+        while(longerSide / (sampleSize * 2) >= mIconSize){
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    interface Callback {
+        /**
+         * Called on the main thread when the icon has been loaded
+         * @param bitmap The icon, which is given back with {@link IconLoader#release(Bitmap)} once
+         *               it is no longer shown
+         */
+        void onIconLoaded(Bitmap bitmap);
+    }
+}
@@ -43,6 +43,8 @@ import android.widget.ImageButton;
 import android.widget.ImageView;
 import android.widget.TextView;
 
+import java.util.ArrayList;
+
 /**
  * A Persistent Search Bar that uses Material Design, very much like the Search Bar in the Google Now App
  * and the Google Play Store.
@@ -51,6 +53,39 @@ public class PersistentSearchView extends CardView{
 
     private static final String TAG = "PersistentSearchView";
     private static final String EMPTY = "";
+    private static final int MAX_VISIBLE_MENU_ITEMS = 5;
+
+    /**
+     * Every change to the search term is passed on right away
+     */
+    public static final int TERM_DISPATCH_IMMEDIATE = 0;
+
+    /**
+     * The search term is passed on once it has not changed for the interval
+     */
+    public static final int TERM_DISPATCH_DEBOUNCE = 1;
+
+    /**
+     * The search term is passed on at most once per interval, at the end of the interval
+     */
+    public static final int TERM_DISPATCH_THROTTLE = 2;
+
+    /**
+     * The first change to the search term is passed on right away, later changes are passed on
+     * at most once per interval with the last one always being passed on
+     */
+    public static final int TERM_DISPATCH_LEADING_TRAILING = 3;
+
+    /**
+     * Suggestions are shown in the order their providers were added, then in the order each
+     * provider gave them
+     */
+    public static final int SUGGESTION_ORDER_SOURCE = 0;
+
+    /**
+     * Suggestions from all the providers are shown highest weight first
+     */
+    public static final int SUGGESTION_ORDER_WEIGHT = 1;
 
     private ImageButton mNavIcon;
     private ImageButton mEndIcon;
@@ -59,6 +94,8 @@ public class PersistentSearchView extends CardView{
     private View mDivider;
 
     private SearchMenuPresenter mPresenter;
+    private SuggestionPipeline mSuggestionPipeline;
+    private SearchTermDispatcher mTermDispatcher;
 
     private CharSequence mHint;
     private boolean mHintAlwaysVisible;
@@ -71,6 +108,7 @@ public class PersistentSearchView extends CardView{
     private OnSearchListener mSearchListener;
     private OnIconClickListener mIconListener;
     private OnMenuItemClickListener mMenuListener;
+    private final ArrayList<SearchRecorder> mSearchRecorders = new ArrayList<>();
 
     private Drawable mEndDrawable;
     private Drawable mClearDrawable;
@@ -103,6 +141,8 @@ public class PersistentSearchView extends CardView{
         mDivider.setVisibility(GONE);
 
         mPresenter = new SearchMenuPresenter(context, new SearchMenuListener());
+        mTermDispatcher = new SearchTermDispatcher(new TermDispatcherCallback());
+        mSuggestionPipeline = new SuggestionPipeline(mPresenter.getMenu());
 
         mSearchMenuView.setAdapter(mPresenter.mAdapter);
         mSearchMenuView.addItemDecoration(new DividerItemDecoration(context, attrs));
@@ -217,10 +257,15 @@ public class PersistentSearchView extends CardView{
         lpMenu.topMargin = lpNav.topMargin + lpNav.height;
         lpMenu.height = RecyclerView.LayoutParams.WRAP_CONTENT;
 
+        int menuItemHeight = res.getDimensionPixelSize(R.dimen.persistent_search_view_menu_item_height);
+        int menuMaxHeight = menuItemHeight * MAX_VISIBLE_MENU_ITEMS;
+
         CardView.LayoutParams lpDivider = generateDefaultLayoutParams();
         if (divider != null) {
             lpDivider.height = divider.getIntrinsicHeight();
+            menuMaxHeight += divider.getIntrinsicHeight() * (MAX_VISIBLE_MENU_ITEMS - 1);
         }
+        mSearchMenuView.setMaxHeight(menuMaxHeight);
         lpDivider.topMargin = lpNav.topMargin + lpNav.height;
 
         //Adds the views to the PersistentSearchView
@@ -270,6 +315,127 @@ public class PersistentSearchView extends CardView{
         mMenuListener = listener;
     }
 
+    /**
+     * Sets the SuggestionProvider that fills the SearchMenu as the search term changes, replacing
+     * any providers that were added with {@link #addSuggestionProvider(SuggestionProvider)} and
+     * removing their suggestions from the SearchMenu. The provider is called on a background
+     * thread, and its suggestions replace the items in the SearchMenu once they are ready.
+     * @see SuggestionProvider
+     * @param provider The provider to set for the View, null to fill the SearchMenu manually
+     */
+    public void setSuggestionProvider(SuggestionProvider provider){
+        mSuggestionPipeline.removeAllProviders();
+        if(provider != null){
+            addSuggestionProvider(provider);
+        }
+    }
+
+    /**
+     * Adds a SuggestionProvider that fills the SearchMenu along with the providers added before
+     * it. Each provider runs on its own background thread, and its suggestions are shown as soon
+     * as they are ready, after the suggestions of the providers that were added before it. A
+     * fast source such as the search history shows up right away, while a slow one such as a
+     * server fills in its rows when it finishes or publishes a batch with
+     * {@link SuggestionQuery#publishResults(java.util.List)}.
+     * @param provider The provider to add
+     */
+    public void addSuggestionProvider(SuggestionProvider provider){
+        mSuggestionPipeline.addProvider(provider);
+        if(mOpened){
+            mSuggestionPipeline.query(mSearchText.getText().toString());
+        }
+    }
+
+    /**
+     * Sets how the suggestions of the providers added with
+     * {@link #addSuggestionProvider(SuggestionProvider)} are ordered in the SearchMenu. When the
+     * same title comes from more than one provider, ignoring case, only the best placed one is
+     * shown. To order by weight, all the providers must give weights on the scale described by
+     * {@link Suggestion}, between 0 and 1.
+     * @param order Either {@link #SUGGESTION_ORDER_SOURCE} or {@link #SUGGESTION_ORDER_WEIGHT}
+     */
+    public void setSuggestionOrder(int order){
+        if(order != SUGGESTION_ORDER_SOURCE && order != SUGGESTION_ORDER_WEIGHT){
+            throw new IllegalArgumentException("Unknown suggestion order " + order);
+        }
+        mSuggestionPipeline.setOrder(order);
+    }
+
+    /**
+     * Removes a SuggestionProvider, and its suggestions from the SearchMenu
+     * @param provider The provider to remove
+     */
+    public void removeSuggestionProvider(SuggestionProvider provider){
+        mSuggestionPipeline.removeProvider(provider);
+    }
+
+    /**
+     * Sets how long the SuggestionProvider has to find suggestions for each change to the search
+     * term. Providers that are still searching at the deadline show the best suggestions they
+     * have found so far, see {@link SuggestionQuery#publishPartialResults(java.util.List)}.
+     * @param budgetMillis The time in milliseconds, or {@link SuggestionQuery#NO_DEADLINE}
+     * @param refine True to replace the partial suggestions with the full suggestions once the
+     *               provider finishes, false for the provider to stop at the deadline
+     */
+    public void setSuggestionTimeBudget(long budgetMillis, boolean refine){
+        mSuggestionPipeline.setTimeBudget(budgetMillis, refine);
+    }
+
+    /**
+     * Adds a SearchRecorder that is told about every search the user makes
+     * @see SearchRecorder
+     * @param recorder The recorder to add
+     */
+    public void addSearchRecorder(SearchRecorder recorder){
+        if(!mSearchRecorders.contains(recorder)) {
+            mSearchRecorders.add(recorder);
+        }
+    }
+
+    /**
+     * Removes a SearchRecorder that was added with {@link #addSearchRecorder(SearchRecorder)}
+     * @param recorder The recorder to remove
+     */
+    public void removeSearchRecorder(SearchRecorder recorder){
+        mSearchRecorders.remove(recorder);
+    }
+
+    /**
+     * Sets how often changes to the search term are passed on to
+     * {@link OnSearchListener#onSearchTermChanged(CharSequence)} and the SuggestionProvider.
+     * Text that the keyboard is still composing is not passed on right away in
+     * {@link #TERM_DISPATCH_LEADING_TRAILING} mode. When the search term is limited, the same
+     * term is not passed on twice in a row, and clearing the search term is passed on right away.
+     * @param mode One of {@link #TERM_DISPATCH_IMMEDIATE}, {@link #TERM_DISPATCH_DEBOUNCE},
+     *             {@link #TERM_DISPATCH_THROTTLE} or {@link #TERM_DISPATCH_LEADING_TRAILING}
+     * @param intervalMillis The interval for the mode in milliseconds
+     */
+    public void setSearchTermDispatchMode(int mode, long intervalMillis){
+        if(mode < TERM_DISPATCH_IMMEDIATE || mode > TERM_DISPATCH_LEADING_TRAILING){
+            throw new IllegalArgumentException("Unknown search term dispatch mode " + mode);
+        }
+        mTermDispatcher.setMode(mode, intervalMillis);
+    }
+
+    /**
+     * Inflates the rows of the SearchMenu ahead of time on a background thread, so the first
+     * {@link #openSearch()} does not have to inflate them on the main thread. Call it once
+     * the View is created, such as in onCreate() of the Activity.
+     */
+    public void warmUpSearchMenu(){
+        mPresenter.preInflate(mSearchMenuView, MAX_VISIBLE_MENU_ITEMS + 1);
+    }
+
+    /**
+     * Sets if each row of the SearchMenu is a single View that draws its icons and title itself,
+     * instead of a layout of an ImageView, a TextView and another ImageView. Flat rows take less
+     * time to create, lay out and draw, which helps while scrolling and opening the SearchMenu.
+     * @param flatRows True to use flat rows, false to use the inflated rows
+     */
+    public void setFlatSearchMenuRows(boolean flatRows){
+        mPresenter.setFlatRows(flatRows);
+    }
+
     /**
      * Populates the Text on the PersistentSearchView
      * @param text The text to set
@@ -339,6 +505,10 @@ public class PersistentSearchView extends CardView{
             mDivider.setVisibility(VISIBLE);
         }
         requestLayout();
+
+        if(mSuggestionPipeline.hasProviders()){
+            mSuggestionPipeline.query(mSearchText.getText().toString());
+        }
     }
 
     /**
@@ -360,6 +530,8 @@ public class PersistentSearchView extends CardView{
             mDivider.setVisibility(GONE);
         }
         requestLayout();
+        mTermDispatcher.cancel();
+        mSuggestionPipeline.clear();
         mPresenter.getMenu().clearItems();
     }
 
@@ -571,9 +743,7 @@ public class PersistentSearchView extends CardView{
                 }
             }
 
-            if(mSearchListener != null && !TextUtils.isEmpty(s)){
-                mSearchListener.onSearchTermChanged(s);
-            }
+            mTermDispatcher.onTermChanged(s);
         }
 
         @Override
@@ -586,6 +756,19 @@ public class PersistentSearchView extends CardView{
         }
     }
 
+    private class TermDispatcherCallback implements SearchTermDispatcher.Callback{
+
+        @Override
+        public void onSearchTermDispatched(CharSequence term) {
+            if(mSearchListener != null && !TextUtils.isEmpty(term)){
+                mSearchListener.onSearchTermChanged(term);
+            }
+            if(mSuggestionPipeline.hasProviders() && mOpened){
+                mSuggestionPipeline.query(term.toString());
+            }
+        }
+    }
+
     private class EditTextEditorAction implements EditText.OnEditorActionListener{
 
         @Override
@@ -594,6 +777,12 @@ public class PersistentSearchView extends CardView{
                 if(mSearchListener != null){
                     mSearchListener.onSearch(v.getText());
                 }
+                String term = v.getText().toString().trim();
+                if(!term.isEmpty()){
+                    for(int i = 0; i < mSearchRecorders.size(); i++){
+                        mSearchRecorders.get(i).recordSearch(term);
+                    }
+                }
                 closeSearch();
                 return true;
             }
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2015 Christopher Beda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wanderingcan.persistentsearch;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.annotation.RestrictTo;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Holds the threads that the SearchMenu and the suggestions package use to do work off of the
+ * main thread. It is public for the suggestions package, and is not part of the library's API.
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+public final class SearchExecutors {
+
+    private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+    private static final int POOL_SIZE = Math.max(2, Math.min(CPU_COUNT - 1, 4));
+    private static final int ICON_POOL_SIZE = 2;
+    private static final int KEEP_ALIVE_SECONDS = 30;
+
+    private static ThreadPoolExecutor sBackground;
+    private static ThreadPoolExecutor sIcons;
+    private static ThreadPoolExecutor sProviders;
+    private static ThreadPoolExecutor sShards;
+    private static Handler sMainThread;
+
+    private SearchExecutors(){
+        //Private Constructor
+    }
+
+    /**
+     * Gets the Executor that runs the SearchMenu's own work, such as working out the difference
+     * between lists of items, on the background threads. SuggestionProviders never run on it,
+     * so a slow provider can not hold up the SearchMenu.
+     * @return The background Executor
+     */
+    static synchronized Executor background(){
+        if(sBackground == null){
+            sBackground = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, KEEP_ALIVE_SECONDS,
+                    TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new BackgroundThreadFactory("PersistentSearch #"));
+            sBackground.allowCoreThreadTimeOut(true);
+        }
+        return sBackground;
+    }
+
+    /**
+     * Gets the Executor that loads the icons of SearchMenuItems, which can wait on files or
+     * ContentProviders, so it has its own threads
+     * @return The icon Executor
+     */
+    static synchronized Executor icons(){
+        if(sIcons == null){
+            sIcons = new ThreadPoolExecutor(ICON_POOL_SIZE, ICON_POOL_SIZE, KEEP_ALIVE_SECONDS,
+                    TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new BackgroundThreadFactory("PersistentSearch Icon #"));
+            sIcons.allowCoreThreadTimeOut(true);
+        }
+        return sIcons;
+    }
+
+    /**
+     * Gets the ExecutorService that searches the shards of a ShardedSuggestionProvider, with a
+     * thread for each core since the shards are searched at the same time
+     * @return The shard ExecutorService
+     */
+    public static synchronized ExecutorService shards(){
+        if(sShards == null){
+            sShards = new ThreadPoolExecutor(CPU_COUNT, CPU_COUNT, KEEP_ALIVE_SECONDS,
+                    TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new BackgroundThreadFactory("PersistentSearch Shard #"));
+            sShards.allowCoreThreadTimeOut(true);
+        }
+        return sShards;
+    }
+
+    /**
+     * Gets the Handler that posts work to the main thread
+     * @return The main thread Handler
+     */
+    static synchronized Handler mainThread(){
+        if(sMainThread == null){
+            sMainThread = new Handler(Looper.getMainLooper());
+        }
+        return sMainThread;
+    }
+
+    /**
+     * Creates an Executor that runs its work one at a time, in order, on a thread of its own
+     * while it has work. Each SuggestionProvider gets one, so a provider that blocks on a server
+     * does not hold up the other providers.
+     * @return A new serial Executor
+     */
+    public static Executor newSerialExecutor(){
+        return new SerialExecutor(providers());
+    }
+
+    /**
+     * Threads are made as needed and kept for a while after, and each SerialExecutor uses at
+     * most one at a time
+     */
+    private static synchronized Executor providers(){
+        if(sProviders == null){
+            sProviders = new ThreadPoolExecutor(0, Integer.MAX_VALUE, KEEP_ALIVE_SECONDS,
+                    TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                    new BackgroundThreadFactory("PersistentSearch Provider #"));
+        }
+        return sProviders;
+    }
+
+    private static class SerialExecutor implements Executor {
+
+        private final Executor mExecutor;
+        private final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+        private Runnable mActive;
+
+        SerialExecutor(Executor executor){
+            mExecutor = executor;
+        }
+
+        @Override
+        public synchronized void execute(final Runnable r) {
+            mTasks.offer(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        r.run();
+                    } finally {
+                        scheduleNext();
+                    }
+                }
+            });
+            if(mActive == null){
+                scheduleNext();
+            }
+        }
+
+        private synchronized void scheduleNext(){
+            mActive = mTasks.poll();
+            if(mActive != null){
+                mExecutor.execute(mActive);
+            }
+        }
+    }
+
+    private static class BackgroundThreadFactory implements ThreadFactory {
+
+        private final String mName;
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        BackgroundThreadFactory(String name){
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, mName + mCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
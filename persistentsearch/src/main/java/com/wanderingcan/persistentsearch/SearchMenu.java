@@ -16,8 +16,16 @@
 
 package com.wanderingcan.persistentsearch;
 
+import android.os.Build;
+import android.support.v7.util.DiffUtil;
+import android.util.SparseArray;
+import android.view.Choreographer;
+
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 
 /**
  * The SearchMenu that creates and holds the SearchMenuItems
@@ -25,10 +33,35 @@ import java.util.Collections;
 public class SearchMenu {
     private static final String TAG = "SearchMenu";
     private static final int DEFAULT_SIZE = 5;
+    private static final int DEFAULT_LOAD_MORE_DISTANCE = 5;
+
+    /**
+     * Used with {@link #setMaxSearchMenuItems(int)} for a SearchMenu with no limit on its size
+     */
+    public static final int UNLIMITED = Integer.MAX_VALUE;
 
     private ArrayList<SearchMenuItem> mItems;
     private SearchMenuPresenter mPresenter;
 
+    private final SparseArray<IndexEntry> mIdIndex = new SparseArray<>();
+    private final HashMap<String, IndexEntry> mTitleIndex = new HashMap<>();
+
+    private int mModCount;
+    private int mSubmitGeneration;
+
+    private int mBatchDepth;
+    private ArrayList<SearchMenuItem> mPresentedItems;
+    private final HashSet<SearchMenuItem> mChangedItems = new HashSet<>();
+    private boolean mFlushScheduled;
+    private Object mFlushCallback;
+
+    private int mMaxItems = DEFAULT_SIZE;
+    private OnLoadMoreListener mLoadMoreListener;
+    private int mLoadMoreDistance = DEFAULT_LOAD_MORE_DISTANCE;
+    private boolean mLoadingMore;
+    private boolean mHasMoreItems = true;
+    private Runnable mLoadMoreRunnable;
+
     private SearchMenu(){
         //Private Constructor
     }
@@ -38,12 +71,16 @@ public class SearchMenu {
         mItems = new ArrayList<>();
     }
 
+    /**
+     * Gets the items that the adapter is showing, while a batch is being built this is the
+     * list from before the batch began
+     */
     protected ArrayList<SearchMenuItem> getItems(){
-        return mItems;
+        return mPresentedItems != null ? mPresentedItems : mItems;
     }
 
     protected int getCount(){
-        return mItems.size();
+        return getItems().size();
     }
 
     /**
@@ -51,7 +88,101 @@ public class SearchMenu {
      * @return The max size of the SearchMenu
      */
     public int maxSearchMenuItems(){
-        return DEFAULT_SIZE;
+        return mMaxItems;
+    }
+
+    /**
+     * Sets the max size of the SearchMenu. If there are more items than the new size, the items
+     * at the end of the menu are removed. Only the rows that are on screen are bound, so the menu
+     * can hold many more items than it shows at once.
+     * @param maxItems The max size of the SearchMenu, or {@link #UNLIMITED}
+     */
+    public void setMaxSearchMenuItems(int maxItems){
+        if(maxItems < 0){
+            throw new IllegalArgumentException("maxItems must not be negative");
+        }
+        mMaxItems = maxItems;
+        int size = mItems.size();
+        if(size <= maxItems){
+            return;
+        }
+        List<SearchMenuItem> removed = mItems.subList(maxItems, size);
+        for(SearchMenuItem item : removed){
+            item.setPosition(-1);
+        }
+        removed.clear();
+        //Rebuilding the lookups once is cheaper than taking the items out one at a time
+        rebuildIndex();
+        mModCount++;
+        if(!isBatching()){
+            mPresenter.mAdapter.notifyItemRangeRemoved(maxItems, size - maxItems);
+        }
+    }
+
+    /**
+     * Sets the listener that is called when the user scrolls close to the end of the SearchMenu,
+     * to add the next page of items. Once the page has been added, or failed to load,
+     * {@link #finishLoadMore(boolean)} must be called.
+     * @param listener The listener to load more items, null to turn off paging
+     */
+    public void setOnLoadMoreListener(OnLoadMoreListener listener){
+        mLoadMoreListener = listener;
+    }
+
+    /**
+     * Sets how close to the end of the SearchMenu a row has to be shown before the next page
+     * is loaded
+     * @param distance The number of rows from the end of the menu
+     */
+    public void setLoadMoreDistance(int distance){
+        mLoadMoreDistance = distance;
+    }
+
+    /**
+     * Tells the SearchMenu that loading a page of items has finished
+     * @param hasMoreItems True if there are more pages to load, false if the last page was loaded
+     */
+    public void finishLoadMore(boolean hasMoreItems){
+        mLoadingMore = false;
+        mHasMoreItems = hasMoreItems;
+    }
+
+    /**
+     * Called when a row in the SearchMenu is bound, loads the next page of items if the row
+     * is close to the end of the menu
+     * @param position The position of the row
+     */
+    void onItemBound(int position){
+        if(mLoadMoreListener == null || mLoadingMore || !mHasMoreItems){
+            return;
+        }
+        int count = mItems.size();
+        if(count >= maxSearchMenuItems() || position < count - mLoadMoreDistance){
+            return;
+        }
+        mLoadingMore = true;
+        if(mLoadMoreRunnable == null){
+            mLoadMoreRunnable = new Runnable() {
+                @Override
+                public void run() {
+                    //Posted since items can not be added while the rows are being laid out
+                    if(mLoadMoreListener != null){
+                        mLoadMoreListener.onLoadMore(SearchMenu.this, mItems.size());
+                    }else{
+                        mLoadingMore = false;
+                    }
+                }
+            };
+        }
+        SearchExecutors.mainThread().post(mLoadMoreRunnable);
+    }
+
+    private void resetLoadMore(){
+        if(mLoadMoreRunnable != null){
+            SearchExecutors.mainThread().removeCallbacks(mLoadMoreRunnable);
+        }
+        mLoadingMore = false;
+        mHasMoreItems = true;
     }
 
     /**
@@ -94,30 +225,134 @@ public class SearchMenu {
         return internalAddSearchMenuItem(id, title, order);
     }
 
+    /**
+     * Creates a SearchMenuItem that is not part of the menu yet, to be passed to
+     * {@link #submitItems(List)}. It can be called on any thread, so the items can be built
+     * off of the main thread, along with setting their icons from resources.
+     * @param id The id of the SearchMenuItem
+     * @param title The title of the SearchMenuItem
+     * @param order The order to display the SearchMenuItem in the SearchMenu
+     * @return Return the new SearchMenuItem
+     */
+    public SearchMenuItem createSearchMenuItem(int id, String title, int order){
+        return new SearchMenuItem(mPresenter, id, order, title);
+    }
+
+    /**
+     * Replaces all the SearchMenuItems in the SearchMenu with the given items. The difference
+     * between the current items and the new items is worked out on a background thread, and
+     * only the rows that were inserted, removed, moved or changed are updated. Items are matched
+     * by their id.
+     * <p>
+     * Must be called from the main thread. If more items are submitted before the difference is
+     * worked out, only the last list submitted is shown. When the menu uses flat rows, the titles
+     * of the first items are laid out on the background thread as well.
+     * </p>
+     * @param items The new SearchMenuItems, created with {@link #createSearchMenuItem(int, String, int)}
+     */
+    public void submitItems(List<SearchMenuItem> items){
+        final ArrayList<SearchMenuItem> newItems = new ArrayList<>(items);
+        Collections.sort(newItems);
+        int max = maxSearchMenuItems();
+        while(newItems.size() > max){
+            newItems.remove(newItems.size() - 1);
+        }
+
+        final int generation = ++mSubmitGeneration;
+        resetLoadMore();
+        final SearchMenuPresenter.TitleLayouts titleLayouts = mPresenter.newTitleLayouts(newItems);
+        final boolean needsDiff = !mItems.isEmpty() && !newItems.isEmpty();
+        if(!needsDiff && titleLayouts == null){
+            //Nothing to compare against or lay out, skip the background work
+            applySubmittedItems(newItems, null);
+            return;
+        }
+
+        final ArrayList<SearchMenuItem> oldItems = new ArrayList<>(mItems);
+        final int modCount = mModCount;
+        SearchExecutors.background().execute(new Runnable() {
+            @Override
+            public void run() {
+                if(titleLayouts != null){
+                    titleLayouts.compute();
+                }
+                final DiffUtil.DiffResult result = needsDiff ? DiffUtil.calculateDiff(
+                        new SearchMenuDiffCallback(oldItems, newItems)) : null;
+                SearchExecutors.mainThread().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if(generation != mSubmitGeneration){
+                            //A newer list has been submitted
+                            return;
+                        }
+                        if(titleLayouts != null){
+                            titleLayouts.apply();
+                        }
+                        if(modCount != mModCount){
+                            //The menu was changed while the difference was being worked out
+                            DiffUtil.DiffResult newResult = null;
+                            if(!mItems.isEmpty() && !newItems.isEmpty()){
+                                newResult = DiffUtil.calculateDiff(
+                                        new SearchMenuDiffCallback(mItems, newItems));
+                            }
+                            applySubmittedItems(newItems, newResult);
+                        }else{
+                            applySubmittedItems(newItems, result);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void applySubmittedItems(ArrayList<SearchMenuItem> newItems, DiffUtil.DiffResult result){
+        int oldSize = mItems.size();
+        detachItems();
+        mItems.addAll(newItems);
+        for(int i = 0; i < mItems.size(); i++){
+            SearchMenuItem item = mItems.get(i);
+            item.setPosition(i);
+            addToIndex(item);
+        }
+        mModCount++;
+        if(isBatching()){
+            //The rows are updated when the batch is flushed
+            return;
+        }
+        if(result != null){
+            result.dispatchUpdatesTo(mPresenter.mAdapter);
+        }else if(oldSize > 0){
+            mPresenter.mAdapter.notifyItemRangeRemoved(0, oldSize);
+        }else if(!newItems.isEmpty()){
+            mPresenter.mAdapter.notifyItemRangeInserted(0, newItems.size());
+        }
+    }
+
     private SearchMenuItem internalAddSearchMenuItem(int id, String title, int order){
-        if( mItems.size() < DEFAULT_SIZE){
+        if( mItems.size() < maxSearchMenuItems()){
             SearchMenuItem item = new SearchMenuItem(mPresenter, id, order, title);
-            mItems.add(item);
-            Collections.sort(mItems);
-            int index = mItems.indexOf(item);
-            mPresenter.mAdapter.notifyItemInserted(index);
+            int index = findInsertPosition(order);
+            mItems.add(index, item);
+            updatePositions(index);
+            addToIndex(item);
+            mModCount++;
+            if(!isBatching()) {
+                mPresenter.mAdapter.notifyItemInserted(index);
+            }
             return item;
         }
         return null;
     }
 
     /**
-     * Get the SearchMenuItem with the given id
+     * Get the SearchMenuItem with the given id. Suggestions from different SuggestionProviders
+     * can share an id, in which case the first of them in the menu is returned.
      * @param id The id of the SearchMenuItem
      * @return The found SearchMenuItem or null if not found
      */
     public SearchMenuItem getSearchMenuItem(int id){
-        for(SearchMenuItem item: mItems){
-            if(item.getId() == id){
-                return item;
-            }
-        }
-        return null;
+        IndexEntry entry = mIdIndex.get(id);
+        return entry != null ? entry.mFirst : null;
     }
 
     /**
@@ -126,12 +361,8 @@ public class SearchMenu {
      * @return The found SearchMenuItem or null if not found
      */
     public SearchMenuItem getSearchMenuItem(String title){
-        for(SearchMenuItem item: mItems){
-            if(item.getTitle().equals(title)){
-                return item;
-            }
-        }
-        return null;
+        IndexEntry entry = mTitleIndex.get(title);
+        return entry != null ? entry.mFirst : null;
     }
 
     /**
@@ -140,10 +371,16 @@ public class SearchMenu {
      * @return true if the menu is modified, false otherwise
      */
     public boolean removeSearchMenuItem(SearchMenuItem item){
-        int index = mItems.indexOf(item);
+        int index = indexOf(item);
         if(index != -1){
-            mItems.remove(item);
-            mPresenter.mAdapter.notifyItemRemoved(index);
+            mItems.remove(index);
+            item.setPosition(-1);
+            updatePositions(index);
+            removeFromIndex(item);
+            mModCount++;
+            if(!isBatching()) {
+                mPresenter.mAdapter.notifyItemRemoved(index);
+            }
             return true;
         }
         return false;
@@ -153,7 +390,288 @@ public class SearchMenu {
      * Clears all the SearchMenuItems in the SearchMenu
      */
     public void clearItems(){
+        detachItems();
+        mModCount++;
+        mSubmitGeneration++;
+        resetLoadMore();
+        if(!isBatching()) {
+            mPresenter.mAdapter.notifyDataSetChanged();
+        }
+    }
+
+    /**
+     * Starts a batch of changes to the SearchMenu and its SearchMenuItems. Until the matching
+     * {@link #endBatch()} is called, adding, removing and changing items does not update the
+     * rows. Once the last batch ends, all the changes are sent together on the next frame.
+     * <p>
+     * Batches can be nested, the changes are only sent when the outer batch ends.
+     * Must be called from the main thread.
+     * </p>
+     */
+    public void beginBatch(){
+        if(mBatchDepth == 0 && mPresentedItems == null){
+            mPresentedItems = new ArrayList<>(mItems);
+        }
+        mBatchDepth++;
+    }
+
+    /**
+     * Ends a batch of changes started with {@link #beginBatch()}
+     */
+    public void endBatch(){
+        if(mBatchDepth == 0){
+            throw new IllegalStateException("endBatch() called without a matching beginBatch()");
+        }
+        mBatchDepth--;
+        if(mBatchDepth == 0){
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Returns if changes to the SearchMenu are currently being held back
+     * @return True if a batch is being built or is waiting to be sent, false otherwise
+     */
+    boolean isBatching(){
+        return mPresentedItems != null;
+    }
+
+    /**
+     * Called when a SearchMenuItem in the menu has changed
+     * @param item The SearchMenuItem that changed
+     */
+    void notifyItemChanged(SearchMenuItem item){
+        int index = indexOf(item);
+        if(index == -1){
+            return;
+        }
+        if(isBatching()){
+            mChangedItems.add(item);
+        }else{
+            mPresenter.mAdapter.notifyItemChanged(index);
+        }
+    }
+
+    /**
+     * Called when the order of a SearchMenuItem has changed, moves the item to keep the menu
+     * sorted by order
+     * @param item The SearchMenuItem whose order changed
+     */
+    void notifyItemOrderChanged(SearchMenuItem item){
+        int index = indexOf(item);
+        if(index == -1){
+            return;
+        }
+        mItems.remove(index);
+        removeFromIndex(item);
+        int newIndex = findInsertPosition(item.getOrdering());
+        mItems.add(newIndex, item);
+        updatePositions(Math.min(index, newIndex));
+        addToIndex(item);
+        mModCount++;
+        if(!isBatching() && index != newIndex){
+            mPresenter.mAdapter.notifyItemMoved(index, newIndex);
+        }
+    }
+
+    /**
+     * Called when the title of a SearchMenuItem is about to change, to keep the title lookup
+     * up to date
+     * @param item The SearchMenuItem whose title is changing
+     * @param title The new title of the SearchMenuItem
+     */
+    void notifyItemTitleChanging(SearchMenuItem item, String title){
+        if(indexOf(item) == -1){
+            return;
+        }
+        removeTitleIndex(item);
+        addTitleIndex(item, title);
+    }
+
+    /**
+     * Finds the position of the item in the menu using the position cached on the item
+     * @return The position of the item, -1 if it is not in the menu
+     */
+    private int indexOf(SearchMenuItem item){
+        int position = item.getPosition();
+        if(position >= 0 && position < mItems.size() && mItems.get(position) == item){
+            return position;
+        }
+        return -1;
+    }
+
+    /**
+     * Binary searches for the position to insert an item with the given order, after any items
+     * that have the same order
+     */
+    private int findInsertPosition(int order){
+        int low = 0;
+        int high = mItems.size();
+        while(low < high){
+            int mid = (low + high) >>> 1;
+            if(mItems.get(mid).getOrdering() <= order){
+                low = mid + 1;
+            }else{
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void updatePositions(int start){
+        for(int i = start; i < mItems.size(); i++){
+            mItems.get(i).setPosition(i);
+        }
+    }
+
+    private void detachItems(){
+        for(SearchMenuItem item : mItems){
+            item.setPosition(-1);
+        }
         mItems.clear();
-        mPresenter.mAdapter.notifyDataSetChanged();
+        mIdIndex.clear();
+        mTitleIndex.clear();
+    }
+
+    private void rebuildIndex(){
+        mIdIndex.clear();
+        mTitleIndex.clear();
+        for(SearchMenuItem item : mItems){
+            addToIndex(item);
+        }
+    }
+
+    private void addToIndex(SearchMenuItem item){
+        IndexEntry entry = mIdIndex.get(item.getId());
+        if(entry == null){
+            mIdIndex.put(item.getId(), new IndexEntry(item));
+        }else{
+            entry.add(item);
+        }
+        addTitleIndex(item, item.getTitle());
+    }
+
+    private void addTitleIndex(SearchMenuItem item, String title){
+        if(title == null){
+            return;
+        }
+        IndexEntry entry = mTitleIndex.get(title);
+        if(entry == null){
+            mTitleIndex.put(title, new IndexEntry(item));
+        }else{
+            entry.add(item);
+        }
+    }
+
+    private void removeFromIndex(SearchMenuItem item){
+        IndexEntry entry = mIdIndex.get(item.getId());
+        if(entry != null){
+            if(--entry.mCount == 0){
+                mIdIndex.remove(item.getId());
+            }else if(entry.mFirst == item){
+                //Only happens when more than one item has the same id
+                for(SearchMenuItem other : mItems){
+                    if(other != item && other.getId() == item.getId()){
+                        entry.mFirst = other;
+                        break;
+                    }
+                }
+            }
+        }
+        removeTitleIndex(item);
+    }
+
+    private void removeTitleIndex(SearchMenuItem item){
+        String title = item.getTitle();
+        IndexEntry entry = title != null ? mTitleIndex.get(title) : null;
+        if(entry == null){
+            return;
+        }
+        if(--entry.mCount == 0){
+            mTitleIndex.remove(title);
+        }else if(entry.mFirst == item){
+            //Only happens when more than one item has the same title
+            for(SearchMenuItem other : mItems){
+                if(other != item && title.equals(other.getTitle())){
+                    entry.mFirst = other;
+                    break;
+                }
+            }
+        }
+    }
+
+    private void scheduleFlush(){
+        if(mFlushScheduled){
+            return;
+        }
+        mFlushScheduled = true;
+        if(Build.VERSION.SDK_INT >= 16){
+            if(mFlushCallback == null){
+                mFlushCallback = new FrameFlush();
+            }
+            Choreographer.getInstance().postFrameCallback((FrameFlush) mFlushCallback);
+        }else{
+            if(mFlushCallback == null){
+                mFlushCallback = new Runnable() {
+                    @Override
+                    public void run() {
+                        flushBatch();
+                    }
+                };
+            }
+            SearchExecutors.mainThread().post((Runnable) mFlushCallback);
+        }
+    }
+
+    private void flushBatch(){
+        mFlushScheduled = false;
+        if(mBatchDepth > 0 || mPresentedItems == null){
+            //A new batch started before the frame, it is flushed when that one ends
+            return;
+        }
+        DiffUtil.DiffResult result = DiffUtil.calculateDiff(
+                new SearchMenuDiffCallback(mPresentedItems, mItems, mChangedItems));
+        mPresentedItems = null;
+        mChangedItems.clear();
+        result.dispatchUpdatesTo(mPresenter.mAdapter);
+    }
+
+    private class FrameFlush implements Choreographer.FrameCallback {
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            flushBatch();
+        }
+    }
+
+    /**
+     * The first item in the menu with an id or title, and how many items have it, so the menu
+     * only has to be searched for the next one when there is more than one
+     */
+    private static class IndexEntry {
+        SearchMenuItem mFirst;
+        int mCount = 1;
+
+        IndexEntry(SearchMenuItem item){
+            mFirst = item;
+        }
+
+        void add(SearchMenuItem item){
+            mCount++;
+            //Lookups return the first item in the menu, like the list did
+            if(mFirst.getPosition() > item.getPosition()){
+                mFirst = item;
+            }
+        }
+    }
+
+    public interface OnLoadMoreListener {
+        /**
+         * Called when the next page of items should be added to the SearchMenu. Call
+         * {@link SearchMenu#finishLoadMore(boolean)} once the page has been added.
+         * @param menu The SearchMenu to add the items to
+         * @param offset The number of items already in the SearchMenu
+         */
+        void onLoadMore(SearchMenu menu, int offset);
     }
 }
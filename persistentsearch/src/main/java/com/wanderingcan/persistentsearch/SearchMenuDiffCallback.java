@@ -0,0 +1,102 @@
+/*
+ * Copyright 2015 Christopher Beda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wanderingcan.persistentsearch;
+
+import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.support.v7.util.DiffUtil;
+import android.text.TextUtils;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Compares two lists of SearchMenuItems so only the changed rows in the SearchMenu are updated
+ */
+class SearchMenuDiffCallback extends DiffUtil.Callback {
+
+    private final List<SearchMenuItem> mOldItems;
+    private final List<SearchMenuItem> mNewItems;
+    private final Set<SearchMenuItem> mChangedItems;
+
+    SearchMenuDiffCallback(List<SearchMenuItem> oldItems, List<SearchMenuItem> newItems){
+        this(oldItems, newItems, Collections.<SearchMenuItem>emptySet());
+    }
+
+    /**
+     * @param oldItems The items the adapter is showing
+     * @param newItems The items the adapter will show
+     * @param changedItems Items that were changed in place, and need to be bound again
+     */
+    SearchMenuDiffCallback(List<SearchMenuItem> oldItems, List<SearchMenuItem> newItems,
+                           Set<SearchMenuItem> changedItems){
+        mOldItems = oldItems;
+        mNewItems = newItems;
+        mChangedItems = changedItems;
+    }
+
+    @Override
+    public int getOldListSize() {
+        return mOldItems.size();
+    }
+
+    @Override
+    public int getNewListSize() {
+        return mNewItems.size();
+    }
+
+    @Override
+    public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+        SearchMenuItem oldItem = mOldItems.get(oldItemPosition);
+        SearchMenuItem newItem = mNewItems.get(newItemPosition);
+        //Suggestions from different providers can have the same id
+        return oldItem.getId() == newItem.getId() && oldItem.getSource() == newItem.getSource();
+    }
+
+    @Override
+    public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+        SearchMenuItem oldItem = mOldItems.get(oldItemPosition);
+        SearchMenuItem newItem = mNewItems.get(newItemPosition);
+        if(oldItem == newItem){
+            return !mChangedItems.contains(newItem);
+        }
+        return TextUtils.equals(oldItem.getTitle(), newItem.getTitle())
+                && isSameDrawable(oldItem.getIcon(), newItem.getIcon())
+                && isSameUri(oldItem.getIconUri(), newItem.getIconUri())
+                && isSameDrawable(oldItem.getActionIcon(), newItem.getActionIcon());
+    }
+
+    private static boolean isSameUri(Uri oldUri, Uri newUri){
+        return oldUri == null ? newUri == null : oldUri.equals(newUri);
+    }
+
+    /**
+     * Drawables loaded from the same resource share their ConstantState, so two items that
+     * show the same icon are treated as the same even if they hold different Drawable objects
+     */
+    private static boolean isSameDrawable(Drawable oldDrawable, Drawable newDrawable){
+        if(oldDrawable == newDrawable){
+            return true;
+        }
+        if(oldDrawable == null || newDrawable == null){
+            return false;
+        }
+        Drawable.ConstantState oldState = oldDrawable.getConstantState();
+        return oldState != null && oldState == newDrawable.getConstantState();
+    }
+}
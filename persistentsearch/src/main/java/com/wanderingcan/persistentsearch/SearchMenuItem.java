@@ -20,12 +20,15 @@ import android.content.Context;
 import android.content.res.ColorStateList;
 import android.graphics.PorterDuff.Mode;
 import android.graphics.drawable.Drawable;
+import android.net.Uri;
 import android.support.annotation.DrawableRes;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.annotation.StringRes;
-import android.support.v4.content.ContextCompat;
 import android.support.v4.graphics.drawable.DrawableCompat;
+import android.text.Layout;
+
+import java.io.File;
 
 /**
  * A Class that holds the Title and Icons for the SearchMenu that is part of the PresistentSearchView
@@ -33,13 +36,19 @@ import android.support.v4.graphics.drawable.DrawableCompat;
 public class SearchMenuItem implements Comparable<SearchMenuItem>{
 
     private final int mId;
+    private Object mSource;
     private int mOrdering;
+    private int mPosition = -1;
 
     private Drawable mIconDrawable;
+    private int mIconResId;
+    private Uri mIconUri;
 
     private String mTitle;
+    private Layout mTitleLayout;
 
     private Drawable mActionDrawable;
+    private int mActionResId;
     private boolean mDefaultAction;
 
     private SearchMenuPresenter mMenu;
@@ -98,7 +107,22 @@ public class SearchMenuItem implements Comparable<SearchMenuItem>{
      * @param order The order to display the item in the menu
      */
     public void setOrdering(int order){
-        mOrdering = order;
+        if(mOrdering != order){
+            mOrdering = order;
+            mMenu.getMenu().notifyItemOrderChanged(this);
+        }
+    }
+
+    /**
+     * Gets the position of the SearchMenuItem in the SearchMenu
+     * @return The position in the menu, -1 if it is not in the menu
+     */
+    int getPosition(){
+        return mPosition;
+    }
+
+    void setPosition(int position){
+        mPosition = position;
     }
 
     /**
@@ -115,7 +139,9 @@ public class SearchMenuItem implements Comparable<SearchMenuItem>{
      */
     public SearchMenuItem setTitle(String title){
         title = title.trim();
+        mMenu.getMenu().notifyItemTitleChanging(this, title);
         mTitle = title;
+        mTitleLayout = null;
         notifyItemChanged();
         return this;
     }
@@ -130,6 +156,31 @@ public class SearchMenuItem implements Comparable<SearchMenuItem>{
         return setTitle(title);
     }
 
+    /**
+     * Gets the source of suggestions that made the item, since the ids of suggestions are only
+     * unique within their own SuggestionProvider
+     * @return The source, null for items that were added to the SearchMenu directly
+     */
+    Object getSource(){
+        return mSource;
+    }
+
+    void setSource(Object source){
+        mSource = source;
+    }
+
+    /**
+     * Gets the Layout of the title that was made ahead of time for flat rows
+     * @return The Layout of the title, null if it has not been laid out
+     */
+    Layout getTitleLayout(){
+        return mTitleLayout;
+    }
+
+    void setTitleLayout(Layout titleLayout){
+        mTitleLayout = titleLayout;
+    }
+
     /**
      * Gets the action icon, loads the icon if it is not loaded.
      * @return Drawable for the action icon
@@ -144,6 +195,7 @@ public class SearchMenuItem implements Comparable<SearchMenuItem>{
      */
     public SearchMenuItem setActionIcon(Drawable icon) {
         mDefaultAction = false;
+        mActionResId = 0;
         mActionDrawable = DrawableCompat.wrap(icon);
         if(mActionTint != null){
             DrawableCompat.setTintList(mActionDrawable, mActionTint);
@@ -160,7 +212,11 @@ public class SearchMenuItem implements Comparable<SearchMenuItem>{
      * @param iconResId The resourceId for the action icon
      */
     public SearchMenuItem setActionIcon(@DrawableRes int iconResId) {
-        return setActionIcon(ContextCompat.getDrawable(mMenu.getContext(), iconResId));
+        mDefaultAction = false;
+        mActionResId = iconResId;
+        mActionDrawable = loadDrawable(iconResId, mActionTint, mActionTintMode);
+        notifyItemChanged();
+        return this;
     }
 
     /**
@@ -176,6 +232,8 @@ public class SearchMenuItem implements Comparable<SearchMenuItem>{
      * @param icon The drawable for the icon
      */
     public SearchMenuItem setIcon(Drawable icon) {
+        mIconResId = 0;
+        mIconUri = null;
         mIconDrawable = DrawableCompat.wrap(icon);
         if(mIconTint != null){
             DrawableCompat.setTintList(mIconDrawable, mIconTint);
@@ -192,40 +250,96 @@ public class SearchMenuItem implements Comparable<SearchMenuItem>{
      * @param iconResId The resourceId for the icon
      */
     public SearchMenuItem setIcon(@DrawableRes int iconResId) {
-        return setIcon(ContextCompat.getDrawable(mMenu.getContext(), iconResId));
+        mIconResId = iconResId;
+        mIconUri = null;
+        mIconDrawable = loadDrawable(iconResId, mIconTint, mIconTintMode);
+        notifyItemChanged();
+        return this;
+    }
+
+    /**
+     * Sets the image for the icon for the SearchMenuItem, which is loaded on a background thread
+     * and scaled down to the size of the icon when the item is shown. The icon that was set
+     * before is shown until the image is loaded.
+     * @param uri The Uri of the image, a file or content Uri
+     */
+    public SearchMenuItem setIcon(Uri uri) {
+        mIconUri = uri;
+        notifyItemChanged();
+        return this;
+    }
+
+    /**
+     * Sets the image file for the icon for the SearchMenuItem
+     * @see #setIcon(Uri)
+     * @param file The image file
+     */
+    public SearchMenuItem setIcon(File file) {
+        return setIcon(Uri.fromFile(file));
+    }
+
+    /**
+     * Gets the Uri of the image for the icon
+     * @return The Uri set with {@link #setIcon(Uri)}, null if the icon is not loaded from a Uri
+     */
+    public Uri getIconUri() {
+        return mIconUri;
     }
 
     public SearchMenuItem setIconTintList(@Nullable ColorStateList tint){
         mIconTint = tint;
-        DrawableCompat.setTintList(mIconDrawable, tint);
+        if(mIconResId != 0){
+            mIconDrawable = loadDrawable(mIconResId, mIconTint, mIconTintMode);
+        }else {
+            DrawableCompat.setTintList(mIconDrawable, tint);
+        }
         notifyItemChanged();
         return this;
     }
 
     public SearchMenuItem setActionIconTint(@Nullable ColorStateList tint){
         mActionTint = tint;
-        DrawableCompat.setTintList(mActionDrawable, tint);
+        if(mActionResId != 0){
+            mActionDrawable = loadDrawable(mActionResId, mActionTint, mActionTintMode);
+        }else {
+            DrawableCompat.setTintList(mActionDrawable, tint);
+        }
         notifyItemChanged();
         return this;
     }
 
     public SearchMenuItem setIconTintMode(@Nullable Mode mode){
         mIconTintMode = mode;
-        DrawableCompat.setTintMode(mIconDrawable, mode);
+        if(mIconResId != 0){
+            mIconDrawable = loadDrawable(mIconResId, mIconTint, mIconTintMode);
+        }else {
+            DrawableCompat.setTintMode(mIconDrawable, mode);
+        }
         notifyItemChanged();
         return this;
     }
 
     public SearchMenuItem setActionIconTintMode(@Nullable Mode mode){
         mActionTintMode = mode;
-        DrawableCompat.setTintMode(mActionDrawable, mode);
+        if(mActionResId != 0){
+            mActionDrawable = loadDrawable(mActionResId, mActionTint, mActionTintMode);
+        }else {
+            DrawableCompat.setTintMode(mActionDrawable, mode);
+        }
         notifyItemChanged();
         return this;
     }
 
+    /**
+     * Loads a drawable resource through the DrawableCache, so items that show the same icon
+     * share its state instead of each loading the resource
+     */
+    private Drawable loadDrawable(@DrawableRes int resId, ColorStateList tint, Mode mode){
+        return mMenu.getDrawableCache().get(resId, tint, mode);
+    }
+
     private void notifyItemChanged() {
-        int index = mMenu.getMenu().getItems().indexOf(this);
-        mMenu.mAdapter.notifyItemChanged(index);
+        mMenu.getMenu().notifyItemChanged(this);
     }
 
     @Override
@@ -17,21 +17,43 @@
 package com.wanderingcan.persistentsearch;
 
 import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.support.v4.os.CancellationSignal;
+import android.support.v4.view.AsyncLayoutInflater;
 import android.support.v7.widget.RecyclerView;
+import android.text.Layout;
+import android.text.TextPaint;
+import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ImageView;
 import android.widget.TextView;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * The class that is responsible for presenting the SearchMenu
  */
 class SearchMenuPresenter {
 
+    private static final int VIEW_TYPE_ITEM = 0;
+    private static final int VIEW_TYPE_FLAT_ITEM = 1;
+    private static final int MAX_PRECOMPUTED_TITLES = 16;
+
     private Context mContext;
     private final SearchMenu mMenu;
+    private final DrawableCache mDrawableCache;
+    private IconLoader mIconLoader;
     private final SearchMenuItemListener mListener;
+    private int mPreInflateCount;
+    private boolean mFlatRows;
+    private TextPaint mTitlePaint;
+    private int mTitleWidth;
     /**
      * The SearchMenuPresenter's Adapter
      */
@@ -39,6 +61,7 @@ class SearchMenuPresenter {
 
     public SearchMenuPresenter(Context context, SearchMenuItemListener listener){
         mContext = context;
+        mDrawableCache = new DrawableCache(context);
         mMenu = new SearchMenu(this);
         mAdapter = new SearchMenuAdapter();
         mListener = listener;
@@ -52,6 +75,25 @@ class SearchMenuPresenter {
         return mContext;
     }
 
+    /**
+     * Gets the cache that the SearchMenuItems load their icons from
+     * @return The DrawableCache of the SearchMenuPresenter
+     */
+    DrawableCache getDrawableCache(){
+        return mDrawableCache;
+    }
+
+    /**
+     * Gets the loader for the icons that SearchMenuItems load from a Uri
+     * @return The IconLoader of the SearchMenuPresenter
+     */
+    IconLoader getIconLoader(){
+        if(mIconLoader == null){
+            mIconLoader = new IconLoader(mContext);
+        }
+        return mIconLoader;
+    }
+
     /**
      * Gets the SearchMenuPresenter's Adapter
      * @return The RecyclerView Adapter attached to the SearchMenuPresenter
@@ -69,6 +111,62 @@ class SearchMenuPresenter {
         return mMenu;
     }
 
+    /**
+     * Sets if the rows of the SearchMenu are drawn by a single SearchMenuRowView instead of
+     * being inflated from content_searchmenu_item
+     * @param flatRows True to use SearchMenuRowViews, false to inflate the rows
+     */
+    void setFlatRows(boolean flatRows){
+        if(mFlatRows != flatRows){
+            mFlatRows = flatRows;
+            mAdapter.notifyDataSetChanged();
+        }
+    }
+
+    /**
+     * Gets ready to lay out the titles of items that are about to be shown, so that it can be
+     * done on a background thread. Only flat rows can use titles laid out ahead of time, and
+     * only once a row has been laid out, so the width of the titles is known.
+     * @param items The items that are about to be shown, in order
+     * @return The TitleLayouts for the first items, null if there is nothing to lay out
+     */
+    TitleLayouts newTitleLayouts(List<SearchMenuItem> items){
+        if(!mFlatRows || mTitleWidth <= 0 || items.isEmpty()){
+            return null;
+        }
+        if(mTitlePaint == null){
+            mTitlePaint = SearchMenuRowView.createTitlePaint(mContext);
+        }
+        //Each TitleLayouts gets its own paint, since they can run at the same time
+        return new TitleLayouts(items.subList(0, Math.min(items.size(), MAX_PRECOMPUTED_TITLES)),
+                new TextPaint(mTitlePaint), mTitleWidth);
+    }
+
+    /**
+     * Inflates rows on a background thread and hands them to the Adapter, so the first time the
+     * SearchMenu is shown its rows only need to be bound.
+     * Must be called on the main thread. Flat rows are not inflated, so nothing is done for them.
+     * @param parent The RecyclerView that the Adapter is set on
+     * @param count The number of rows that should be ready
+     */
+    void preInflate(RecyclerView parent, int count){
+        if(mFlatRows || count <= mPreInflateCount){
+            return;
+        }
+        AsyncLayoutInflater inflater = new AsyncLayoutInflater(parent.getContext());
+        AsyncLayoutInflater.OnInflateFinishedListener listener =
+                new AsyncLayoutInflater.OnInflateFinishedListener() {
+            @Override
+            public void onInflateFinished(View view, int resid, ViewGroup parent) {
+                mAdapter.addInflatedView(view);
+            }
+        };
+        for(int i = mPreInflateCount; i < count; i++){
+            inflater.inflate(R.layout.content_searchmenu_item, parent, listener);
+        }
+        mPreInflateCount = count;
+    }
+
     public interface SearchMenuItemListener{
         void onItemClick(SearchMenuItem item);
         void onActionClick(SearchMenuItem item, boolean defaultAction);
@@ -76,19 +174,47 @@ class SearchMenuPresenter {
 
     protected class SearchMenuAdapter extends RecyclerView.Adapter<ViewHolder> {
 
+        private final ArrayList<View> mInflatedViews = new ArrayList<>();
+
+        /**
+         * Keeps a row that was inflated ahead of time, for the next time the RecyclerView needs
+         * a new row. The RecyclerView creates the ViewHolder itself, since only it can give the
+         * holder its view type.
+         * @param view The row inflated from content_searchmenu_item
+         */
+        void addInflatedView(View view){
+            mInflatedViews.add(view);
+        }
+
+        @Override
+        public int getItemViewType(int position) {
+            return mFlatRows ? VIEW_TYPE_FLAT_ITEM : VIEW_TYPE_ITEM;
+        }
+
         @Override
         public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
-            LayoutInflater inflater = LayoutInflater.from(parent.getContext());
-            View view = inflater.inflate(R.layout.content_searchmenu_item, parent, false);
-            return new ViewHolder(view);
+            if(viewType == VIEW_TYPE_FLAT_ITEM){
+                return new FlatViewHolder(new SearchMenuRowView(parent.getContext()));
+            }
+            View view;
+            if(!mInflatedViews.isEmpty()){
+                view = mInflatedViews.remove(mInflatedViews.size() - 1);
+            }else {
+                LayoutInflater inflater = LayoutInflater.from(parent.getContext());
+                view = inflater.inflate(R.layout.content_searchmenu_item, parent, false);
+            }
+            return new InflatedViewHolder(view);
         }
 
         @Override
         public void onBindViewHolder(ViewHolder holder, int position) {
-            SearchMenuItem item = mMenu.getItems().get(position);
-            holder.mTitle.setText(item.getTitle());
-            holder.mIcon.setImageDrawable(item.getIcon());
-            holder.mAction.setImageDrawable(item.getActionIcon());
+            holder.bindItem(mMenu.getItems().get(position));
+            mMenu.onItemBound(position);
+        }
+
+        @Override
+        public void onViewRecycled(ViewHolder holder) {
+            holder.releaseIcon();
         }
 
         @Override
@@ -97,29 +223,225 @@ class SearchMenuPresenter {
         }
     }
 
-    private class ViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener{
+    private abstract class ViewHolder extends RecyclerView.ViewHolder
+            implements View.OnClickListener, IconLoader.Callback{
+
+        private Uri mIconUri;
+        private CancellationSignal mIconLoad;
+        private Bitmap mIconBitmap;
+        private Drawable mLoadedIcon;
+
+        public ViewHolder(View itemView) {
+            super(itemView);
+            itemView.setOnClickListener(this);
+        }
+
+        /**
+         * Shows the item in the row
+         * @param item The item to show
+         * @param icon The icon to show for the item
+         */
+        abstract void bind(SearchMenuItem item, Drawable icon);
+
+        /**
+         * Shows an icon that was loaded after the row was bound
+         * @param icon The icon to show
+         */
+        abstract void showIcon(Drawable icon);
+
+        final void bindItem(SearchMenuItem item){
+            Uri iconUri = item.getIconUri();
+            if(iconUri != null && iconUri.equals(mIconUri)){
+                //Same image as before, keep the loaded icon or the load that is running
+                bind(item, mLoadedIcon != null ? mLoadedIcon : item.getIcon());
+                return;
+            }
+            bind(item, item.getIcon());
+            cancelIconLoad();
+            mIconUri = iconUri;
+            if(iconUri != null){
+                mIconLoad = getIconLoader().load(iconUri, this);
+            }
+        }
+
+        /**
+         * Stops showing the loaded icon and gives its Bitmap back to the IconLoader
+         */
+        final void releaseIcon(){
+            if(mLoadedIcon != null){
+                showIcon(null);
+            }
+            cancelIconLoad();
+            mIconUri = null;
+        }
+
+        private void cancelIconLoad(){
+            if(mIconLoad != null){
+                mIconLoad.cancel();
+                mIconLoad = null;
+            }
+            if(mIconBitmap != null){
+                getIconLoader().release(mIconBitmap);
+                mIconBitmap = null;
+                mLoadedIcon = null;
+            }
+        }
+
+        @Override
+        public void onIconLoaded(Bitmap bitmap) {
+            mIconLoad = null;
+            mIconBitmap = bitmap;
+            mLoadedIcon = new BitmapDrawable(itemView.getResources(), bitmap);
+            showIcon(mLoadedIcon);
+        }
+
+        @Override
+        public void onClick(View v) {
+            SearchMenuItem item = getAdapterItem();
+            if(mListener != null && item != null && v.equals(super.itemView)){
+                mListener.onItemClick(item);
+            }
+        }
+
+        void onActionClick(){
+            SearchMenuItem item = getAdapterItem();
+            if(mListener != null && item != null) {
+                mListener.onActionClick(item, item.isDefaultAction());
+            }
+        }
+
+        /**
+         * Gets the item the row is showing
+         * @return The item, or null if the row is being removed or the update that added it
+         * has not been laid out yet
+         */
+        private SearchMenuItem getAdapterItem(){
+            int position = getAdapterPosition();
+            if(position == RecyclerView.NO_POSITION){
+                return null;
+            }
+            return mMenu.getItems().get(position);
+        }
+    }
+
+    private class InflatedViewHolder extends ViewHolder {
         public final TextView mTitle;
         public final ImageView mIcon;
         public final ImageView mAction;
 
-        public ViewHolder(View itemView) {
+        public InflatedViewHolder(View itemView) {
             super(itemView);
-            itemView.setOnClickListener(this);
             mTitle = (TextView) itemView.findViewById(R.id.content_title);
             mIcon = (ImageView) itemView.findViewById(R.id.content_display_icon);
             mAction = (ImageView) itemView.findViewById(R.id.content_action_icon);
             mAction.setOnClickListener(this);
         }
 
+        @Override
+        void bind(SearchMenuItem item, Drawable icon) {
+            mTitle.setText(item.getTitle());
+            mIcon.setImageDrawable(icon);
+            mAction.setImageDrawable(item.getActionIcon());
+        }
+
+        @Override
+        void showIcon(Drawable icon) {
+            mIcon.setImageDrawable(icon);
+        }
+
         @Override
         public void onClick(View v) {
-            if(mListener != null) {
-                if (v.equals(mAction)) {
-                    SearchMenuItem item = mMenu.getItems().get(getAdapterPosition());
-                    mListener.onActionClick(item, item.isDefaultAction());
+            if (v.equals(mAction)) {
+                onActionClick();
+            }
+            super.onClick(v);
+        }
+    }
+
+    private class FlatViewHolder extends ViewHolder {
+        public final SearchMenuRowView mRow;
+
+        public FlatViewHolder(SearchMenuRowView row) {
+            super(row);
+            mRow = row;
+            mRow.setLayoutParams(new RecyclerView.LayoutParams(
+                    RecyclerView.LayoutParams.MATCH_PARENT,
+                    RecyclerView.LayoutParams.WRAP_CONTENT));
+            mRow.setOnActionClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View v) {
+                    onActionClick();
+                }
+            });
+            mRow.addOnLayoutChangeListener(new View.OnLayoutChangeListener() {
+                @Override
+                public void onLayoutChange(View v, int left, int top, int right, int bottom,
+                                           int oldLeft, int oldTop, int oldRight, int oldBottom) {
+                    mTitleWidth = mRow.getTitleWidth();
                 }
-                if(v.equals(super.itemView)){
-                    mListener.onItemClick(mMenu.getItems().get(getAdapterPosition()));
+            });
+        }
+
+        @Override
+        void bind(SearchMenuItem item, Drawable icon) {
+            mRow.setTitle(item.getTitle(), item.getTitleLayout());
+            mRow.setIcon(icon);
+            mRow.setActionIcon(item.getActionIcon());
+        }
+
+        @Override
+        void showIcon(Drawable icon) {
+            mRow.setIcon(icon);
+        }
+    }
+
+    /**
+     * Lays out the titles of SearchMenuItems on a background thread for flat rows, so binding a
+     * row does not have to measure its title on the main thread
+     */
+    static final class TitleLayouts {
+
+        private final SearchMenuItem[] mItems;
+        private final String[] mTitles;
+        private final Layout[] mLayouts;
+        private final TextPaint mPaint;
+        private final int mWidth;
+
+        private TitleLayouts(List<SearchMenuItem> items, TextPaint paint, int width){
+            int count = items.size();
+            mItems = items.toArray(new SearchMenuItem[count]);
+            mTitles = new String[count];
+            mLayouts = new Layout[count];
+            mPaint = paint;
+            mWidth = width;
+            for(int i = 0; i < count; i++){
+                Layout layout = mItems[i].getTitleLayout();
+                if(layout == null || layout.getWidth() != width){
+                    //The titles are read on the main thread, since items are not thread safe
+                    mTitles[i] = mItems[i].getTitle();
+                }
+            }
+        }
+
+        /**
+         * Lays out the titles, called on a background thread
+         */
+        void compute(){
+            for(int i = 0; i < mTitles.length; i++){
+                if(!TextUtils.isEmpty(mTitles[i])){
+                    mLayouts[i] = SearchMenuRowView.createTitleLayout(mTitles[i], mPaint, mWidth);
+                }
+            }
+        }
+
+        /**
+         * Gives the Layouts to the items whose titles did not change while they were being
+         * laid out, called on the main thread
+         */
+        void apply(){
+            for(int i = 0; i < mItems.length; i++){
+                if(mLayouts[i] != null && TextUtils.equals(mTitles[i], mItems[i].getTitle())){
+                    mItems[i].setTitleLayout(mLayouts[i]);
                 }
             }
         }
@@ -0,0 +1,446 @@
+/*
+ * Copyright 2015 Christopher Beda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.wanderingcan.persistentsearch;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.content.res.TypedArray;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+import android.os.Build;
+import android.os.Bundle;
+import android.support.v4.content.ContextCompat;
+import android.support.v4.view.ViewCompat;
+import android.support.v4.view.accessibility.AccessibilityNodeInfoCompat;
+import android.support.v4.widget.ExploreByTouchHelper;
+import android.text.Layout;
+import android.text.StaticLayout;
+import android.text.TextPaint;
+import android.text.TextUtils;
+import android.view.MotionEvent;
+import android.view.SoundEffectConstants;
+import android.view.View;
+import android.view.accessibility.AccessibilityEvent;
+
+import java.util.List;
+
+/**
+ * A row of the SearchMenu that draws its icon, title and action icon itself, instead of being
+ * a FrameLayout holding an ImageView, a TextView and another ImageView
+ */
+class SearchMenuRowView extends View {
+
+    private static final int MAX_TITLE_LINES = 2;
+
+    private final TextPaint mTextPaint;
+    private final int mRowHeight;
+    private final int mIconSize;
+    private final int mIconMargin;
+    private final int mTextMargin;
+
+    private Drawable mIcon;
+    private Drawable mActionIcon;
+    private CharSequence mTitle;
+    private Layout mTitleLayout;
+
+    private OnClickListener mActionListener;
+    private boolean mActionTouched;
+
+    private final RowAccessibilityHelper mAccessibilityHelper;
+
+    @SuppressWarnings("deprecation")
+    public SearchMenuRowView(Context context) {
+        super(context);
+        Resources res = context.getResources();
+        mRowHeight = res.getDimensionPixelSize(R.dimen.persistent_search_view_menu_item_height);
+        mIconSize = res.getDimensionPixelSize(R.dimen.persistent_search_view_menu_item_icon);
+        mIconMargin = res.getDimensionPixelSize(R.dimen.persistent_search_view_image_side_margin);
+        mTextMargin = res.getDimensionPixelSize(R.dimen.persistent_search_view_text_margin_menu);
+
+        mTextPaint = createTitlePaint(context);
+
+        TypedArray a = context.obtainStyledAttributes(
+                new int[] { android.R.attr.selectableItemBackground });
+        Drawable background = a.getDrawable(0);
+        a.recycle();
+        if(Build.VERSION.SDK_INT >= 16) {
+            setBackground(background);
+        }else {
+            setBackgroundDrawable(background);
+        }
+        setClickable(true);
+
+        //The action is only drawn, so accessibility services are given it as a virtual View
+        mAccessibilityHelper = new RowAccessibilityHelper();
+        ViewCompat.setAccessibilityDelegate(this, mAccessibilityHelper);
+    }
+
+    /**
+     * Creates the paint that the titles of the rows are drawn with, with the same text size and
+     * color as the title of an inflated row
+     * @param context The Context to get the text size and color from
+     * @return A new TextPaint
+     */
+    static TextPaint createTitlePaint(Context context){
+        TextPaint paint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
+        paint.density = context.getResources().getDisplayMetrics().density;
+        paint.setTextSize(context.getResources()
+                .getDimension(R.dimen.persistent_search_view_menu_item_text_size));
+        paint.setColor(ContextCompat.getColor(context,
+                R.color.persistent_search_view_menu_item_text));
+        return paint;
+    }
+
+    /**
+     * Lays out a title in at most two lines, ellipsizing the end of the second line if the title
+     * does not fit. This does not touch any Views, so it can be called on any thread.
+     * @param title The title to lay out
+     * @param paint The paint from {@link #createTitlePaint(Context)}
+     * @param width The width in pixels that the title is laid out in
+     * @return The Layout of the title
+     */
+    @SuppressWarnings("deprecation")
+    static Layout createTitleLayout(CharSequence title, TextPaint paint, int width){
+        if(Build.VERSION.SDK_INT >= 23){
+            return StaticLayout.Builder.obtain(title, 0, title.length(), paint, width)
+                    .setMaxLines(MAX_TITLE_LINES)
+                    .setEllipsize(TextUtils.TruncateAt.END)
+                    .setIncludePad(true)
+                    .build();
+        }
+        Layout layout = new StaticLayout(title, paint, width, Layout.Alignment.ALIGN_NORMAL,
+                1f, 0f, true);
+        if(layout.getLineCount() <= MAX_TITLE_LINES){
+            return layout;
+        }
+        //Before API 23 StaticLayout can't limit the lines, so the last line is ellipsized by hand
+        int lastLineStart = layout.getLineStart(MAX_TITLE_LINES - 1);
+        CharSequence lastLine = TextUtils.ellipsize(
+                title.subSequence(lastLineStart, title.length()), paint, width,
+                TextUtils.TruncateAt.END);
+        title = TextUtils.concat(title.subSequence(0, lastLineStart), lastLine);
+        return new StaticLayout(title, paint, width, Layout.Alignment.ALIGN_NORMAL, 1f, 0f, true);
+    }
+
+    /**
+     * Sets the title of the row
+     * @param title The title to show
+     */
+    public void setTitle(CharSequence title){
+        setTitle(title, null);
+    }
+
+    /**
+     * Sets the title of the row, with a Layout of it that was made ahead of time by
+     * {@link #createTitleLayout(CharSequence, TextPaint, int)}. The Layout is only used if it
+     * was made for the width of the title in this row.
+     * @param title The title to show
+     * @param titleLayout The Layout of the title, or null to lay it out when the row is drawn
+     */
+    public void setTitle(CharSequence title, Layout titleLayout){
+        if(!TextUtils.equals(mTitle, title)){
+            mTitle = title;
+            mTitleLayout = null;
+            setContentDescription(title);
+            mAccessibilityHelper.invalidateRoot();
+            invalidate();
+        }
+        if(titleLayout != null && titleLayout != mTitleLayout){
+            mTitleLayout = titleLayout;
+            invalidate();
+        }
+    }
+
+    /**
+     * Gets the width that the title is laid out in
+     * @return The width in pixels, 0 or less if the row has not been laid out
+     */
+    public int getTitleWidth(){
+        return getWidth() - mTextMargin * 2;
+    }
+
+    /**
+     * Sets the icon shown at the start of the row
+     * @param icon The icon, or null for no icon
+     */
+    public void setIcon(Drawable icon){
+        if(mIcon != icon){
+            mIcon = swapDrawable(mIcon, icon);
+            updateIconBounds();
+        }
+    }
+
+    /**
+     * Sets the icon shown at the end of the row, the action area can only be clicked while the
+     * row has an action icon
+     * @param actionIcon The action icon, or null for no action icon
+     */
+    public void setActionIcon(Drawable actionIcon){
+        if(mActionIcon != actionIcon){
+            boolean hadAction = hasAction();
+            mActionIcon = swapDrawable(mActionIcon, actionIcon);
+            updateIconBounds();
+            if(hadAction != hasAction()){
+                mAccessibilityHelper.invalidateRoot();
+            }
+        }
+    }
+
+    /**
+     * Sets the listener that is called when the action area at the end of the row is clicked,
+     * clicks on the rest of the row go to {@link #setOnClickListener(OnClickListener)}
+     * @param listener The listener to call
+     */
+    public void setOnActionClickListener(OnClickListener listener){
+        if(mActionListener != listener){
+            mActionListener = listener;
+            mAccessibilityHelper.invalidateRoot();
+        }
+    }
+
+    /**
+     * An action is only shown, and given to accessibility services, when there is an icon for it
+     */
+    private boolean hasAction(){
+        return mActionIcon != null && mActionListener != null;
+    }
+
+    private void performActionClick(){
+        playSoundEffect(SoundEffectConstants.CLICK);
+        mActionListener.onClick(this);
+        mAccessibilityHelper.sendEventForVirtualView(RowAccessibilityHelper.ACTION_ID,
+                AccessibilityEvent.TYPE_VIEW_CLICKED);
+    }
+
+    private Drawable swapDrawable(Drawable oldDrawable, Drawable newDrawable){
+        if(oldDrawable != null){
+            oldDrawable.setCallback(null);
+        }
+        if(newDrawable != null){
+            newDrawable.setCallback(this);
+        }
+        invalidate();
+        return newDrawable;
+    }
+
+    private boolean isLayoutRtl(){
+        return ViewCompat.getLayoutDirection(this) == ViewCompat.LAYOUT_DIRECTION_RTL;
+    }
+
+    private void updateIconBounds(){
+        int width = getWidth();
+        int startLeft = mIconMargin;
+        int endLeft = width - mIconMargin - mIconSize;
+        boolean rtl = isLayoutRtl();
+        setIconBounds(mIcon, rtl ? endLeft : startLeft);
+        setIconBounds(mActionIcon, rtl ? startLeft : endLeft);
+    }
+
+    /**
+     * Scales the drawable to fit in the icon square, keeping its aspect ratio, like the
+     * FIT_CENTER scale type of an ImageView
+     */
+    private void setIconBounds(Drawable drawable, int left){
+        if(drawable == null){
+            return;
+        }
+        int top = (getHeight() - mIconSize) / 2;
+        int width = drawable.getIntrinsicWidth();
+        int height = drawable.getIntrinsicHeight();
+        if(width <= 0 || height <= 0){
+            drawable.setBounds(left, top, left + mIconSize, top + mIconSize);
+            return;
+        }
+        float scale = Math.min((float) mIconSize / width, (float) mIconSize / height);
+        width = Math.round(width * scale);
+        height = Math.round(height * scale);
+        left += (mIconSize - width) / 2;
+        top += (mIconSize - height) / 2;
+        drawable.setBounds(left, top, left + width, top + height);
+    }
+
+    private Layout getTitleLayout(){
+        int width = getTitleWidth();
+        if(TextUtils.isEmpty(mTitle) || width <= 0){
+            return null;
+        }
+        if(mTitleLayout == null || mTitleLayout.getWidth() != width){
+            mTitleLayout = createTitleLayout(mTitle, mTextPaint, width);
+        }
+        return mTitleLayout;
+    }
+
+    private boolean isInActionArea(float x){
+        int areaWidth = getActionAreaWidth();
+        return isLayoutRtl() ? x < areaWidth : x >= getWidth() - areaWidth;
+    }
+
+    private int getActionAreaWidth(){
+        return mIconSize + mIconMargin * 2;
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        setMeasuredDimension(getDefaultSize(getSuggestedMinimumWidth(), widthMeasureSpec),
+                resolveSize(mRowHeight, heightMeasureSpec));
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        updateIconBounds();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if(mIcon != null){
+            mIcon.draw(canvas);
+        }
+        if(mActionIcon != null){
+            mActionIcon.draw(canvas);
+        }
+        Layout layout = getTitleLayout();
+        if(layout != null){
+            int saveCount = canvas.save();
+            canvas.translate(mTextMargin, (getHeight() - layout.getHeight()) / 2);
+            layout.draw(canvas);
+            canvas.restoreToCount(saveCount);
+        }
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        //Touches that start on the action area belong to the action, and do not press the row
+        switch(event.getActionMasked()){
+            case MotionEvent.ACTION_DOWN:
+                mActionTouched = hasAction() && isInActionArea(event.getX());
+                break;
+            case MotionEvent.ACTION_UP:
+                if(mActionTouched){
+                    mActionTouched = false;
+                    if(hasAction() && isInActionArea(event.getX())){
+                        performActionClick();
+                    }
+                    return true;
+                }
+                break;
+            case MotionEvent.ACTION_CANCEL:
+                if(mActionTouched){
+                    mActionTouched = false;
+                    return true;
+                }
+                break;
+        }
+        return mActionTouched || super.onTouchEvent(event);
+    }
+
+    @Override
+    protected boolean dispatchHoverEvent(MotionEvent event) {
+        return mAccessibilityHelper.dispatchHoverEvent(event) || super.dispatchHoverEvent(event);
+    }
+
+    @Override
+    protected boolean verifyDrawable(Drawable who) {
+        return who == mIcon || who == mActionIcon || super.verifyDrawable(who);
+    }
+
+    /**
+     * Splits the row into two virtual Views for accessibility services, the row itself and the
+     * action at its end, so the action can be found and clicked without touching it
+     */
+    private class RowAccessibilityHelper extends ExploreByTouchHelper {
+
+        static final int ROW_ID = 0;
+        static final int ACTION_ID = 1;
+
+        private final Rect mTempRect = new Rect();
+
+        RowAccessibilityHelper() {
+            super(SearchMenuRowView.this);
+        }
+
+        @Override
+        protected int getVirtualViewAt(float x, float y) {
+            return hasAction() && isInActionArea(x) ? ACTION_ID : ROW_ID;
+        }
+
+        @Override
+        protected void getVisibleVirtualViews(List<Integer> virtualViewIds) {
+            virtualViewIds.add(ROW_ID);
+            if(hasAction()){
+                virtualViewIds.add(ACTION_ID);
+            }
+        }
+
+        @Override
+        protected void onPopulateEventForVirtualView(int virtualViewId, AccessibilityEvent event) {
+            event.setContentDescription(getVirtualViewDescription(virtualViewId));
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        protected void onPopulateNodeForVirtualView(int virtualViewId,
+                                                    AccessibilityNodeInfoCompat node) {
+            node.setContentDescription(getVirtualViewDescription(virtualViewId));
+            node.addAction(AccessibilityNodeInfoCompat.ACTION_CLICK);
+            node.setClickable(true);
+            node.setBoundsInParent(getVirtualViewBounds(virtualViewId));
+        }
+
+        @Override
+        protected boolean onPerformActionForVirtualView(int virtualViewId, int action,
+                                                        Bundle arguments) {
+            if(action != AccessibilityNodeInfoCompat.ACTION_CLICK){
+                return false;
+            }
+            if(virtualViewId == ACTION_ID){
+                if(!hasAction()){
+                    return false;
+                }
+                performActionClick();
+                return true;
+            }
+            return performClick();
+        }
+
+        private CharSequence getVirtualViewDescription(int virtualViewId){
+            if(virtualViewId == ACTION_ID){
+                return getResources().getString(R.string.persistent_search_view_menu_item_action,
+                        mTitle == null ? "" : mTitle);
+            }
+            return mTitle == null ? "" : mTitle;
+        }
+
+        private Rect getVirtualViewBounds(int virtualViewId){
+            int width = getWidth();
+            int actionWidth = hasAction() ? Math.min(getActionAreaWidth(), width) : 0;
+            boolean rtl = isLayoutRtl();
+            if(virtualViewId == ACTION_ID){
+                mTempRect.set(rtl ? 0 : width - actionWidth, 0, rtl ? actionWidth : width,
+                        getHeight());
+            }else{
+                mTempRect.set(rtl ? actionWidth : 0, 0, rtl ? width : width - actionWidth,
+                        getHeight());
+            }
+            return mTempRect;
+        }
+    }
+}
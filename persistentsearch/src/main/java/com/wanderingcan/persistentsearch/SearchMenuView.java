@@ -26,6 +26,8 @@ import android.util.AttributeSet;
  */
 class SearchMenuView extends RecyclerView {
 
+    private int mMaxHeight;
+
     public SearchMenuView(Context context) {
         this(context, null);
     }
@@ -38,5 +40,30 @@ class SearchMenuView extends RecyclerView {
         super(context, attrs, defStyleAttr);
         setLayoutManager(new LinearLayoutManager(context, LinearLayoutManager.VERTICAL, false));
         setItemAnimator(null);
+        mMaxHeight = -1;
+    }
+
+    /**
+     * Sets the max height of the SearchMenuView, rows past this height are scrolled to instead
+     * of all being laid out at once
+     * @param maxHeight The max height in pixels, -1 for no max height
+     */
+    public void setMaxHeight(int maxHeight){
+        if(mMaxHeight != maxHeight) {
+            mMaxHeight = maxHeight;
+            requestLayout();
+        }
+    }
+
+    @Override
+    protected void onMeasure(int widthSpec, int heightSpec) {
+        if(mMaxHeight >= 0){
+            int heightMode = MeasureSpec.getMode(heightSpec);
+            int heightSize = MeasureSpec.getSize(heightSpec);
+            if(heightMode == MeasureSpec.UNSPECIFIED || heightSize > mMaxHeight){
+                heightSpec = MeasureSpec.makeMeasureSpec(mMaxHeight, MeasureSpec.AT_MOST);
+            }
+        }
+        super.onMeasure(widthSpec, heightSpec);
     }
 }
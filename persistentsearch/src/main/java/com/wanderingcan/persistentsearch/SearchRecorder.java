@@ -0,0 +1,31 @@
+/*
+ * Copyright 2015 Christopher Beda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wanderingcan.persistentsearch;
+
+/**
+ * Records the searches that are made in a PersistentSearchView
+ * @see PersistentSearchView#addSearchRecorder(SearchRecorder)
+ */
+public interface SearchRecorder {
+
+    /**
+     * Called on the main thread when the user searches for a term. Implementations should not
+     * block, and do any disk work on a background thread.
+     * @param term The term that was searched for
+     */
+    void recordSearch(String term);
+}
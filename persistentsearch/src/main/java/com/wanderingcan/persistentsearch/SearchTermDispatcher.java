@@ -0,0 +1,158 @@
+/*
+ * Copyright 2015 Christopher Beda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wanderingcan.persistentsearch;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.text.Spannable;
+import android.text.TextUtils;
+import android.view.inputmethod.BaseInputConnection;
+
+/**
+ * Limits how often changes to the search term are passed on, by debouncing or throttling them
+ */
+class SearchTermDispatcher {
+
+    private final Callback mCallback;
+    private final Handler mHandler;
+
+    private int mMode;
+    private long mInterval;
+
+    private String mPendingTerm;
+    private boolean mScheduled;
+    private long mLastDispatchTime;
+    private String mLastDispatchedTerm;
+
+    private final Runnable mDispatchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mScheduled = false;
+            dispatch(mPendingTerm, SystemClock.uptimeMillis());
+        }
+    };
+
+    SearchTermDispatcher(Callback callback){
+        mCallback = callback;
+        mHandler = SearchExecutors.mainThread();
+        mMode = PersistentSearchView.TERM_DISPATCH_IMMEDIATE;
+    }
+
+    /**
+     * Sets how changes to the search term are passed on
+     * @param mode One of the PersistentSearchView TERM_DISPATCH modes
+     * @param intervalMillis The interval for the mode in milliseconds
+     */
+    void setMode(int mode, long intervalMillis){
+        cancel();
+        mMode = mode;
+        mInterval = intervalMillis;
+        mLastDispatchTime = 0;
+    }
+
+    /**
+     * Called when the search term changes
+     * @param term The new search term
+     */
+    void onTermChanged(CharSequence term){
+        if(mMode == PersistentSearchView.TERM_DISPATCH_IMMEDIATE || mInterval <= 0){
+            mCallback.onSearchTermDispatched(term);
+            return;
+        }
+
+        long now = SystemClock.uptimeMillis();
+        if(TextUtils.isEmpty(term)){
+            //Clearing the search is never held back
+            cancelPending();
+            dispatch(term.toString(), now);
+            return;
+        }
+
+        mPendingTerm = term.toString();
+        switch (mMode){
+            case PersistentSearchView.TERM_DISPATCH_DEBOUNCE:
+                schedule(now + mInterval, true);
+                break;
+            case PersistentSearchView.TERM_DISPATCH_THROTTLE:
+                schedule(now + mInterval, false);
+                break;
+            case PersistentSearchView.TERM_DISPATCH_LEADING_TRAILING:
+                if(mScheduled){
+                    break;
+                }
+                if(now - mLastDispatchTime >= mInterval && !isComposing(term)){
+                    dispatch(mPendingTerm, now);
+                }else{
+                    //Text that the IME is still composing can change, so it only goes out
+                    //on the trailing edge
+                    schedule(Math.max(mLastDispatchTime, now) + mInterval, false);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Cancels any search term that is waiting to be passed on, and forgets the last term that
+     * was, so the next term is passed on even if it is the same
+     */
+    void cancel(){
+        cancelPending();
+        mLastDispatchedTerm = null;
+    }
+
+    private void cancelPending(){
+        if(mScheduled){
+            mHandler.removeCallbacks(mDispatchRunnable);
+            mScheduled = false;
+        }
+        mPendingTerm = null;
+    }
+
+    private void schedule(long uptimeMillis, boolean reschedule){
+        if(mScheduled){
+            if(!reschedule){
+                return;
+            }
+            mHandler.removeCallbacks(mDispatchRunnable);
+        }
+        mScheduled = true;
+        mHandler.postAtTime(mDispatchRunnable, uptimeMillis);
+    }
+
+    private void dispatch(String term, long now){
+        mPendingTerm = null;
+        mLastDispatchTime = now;
+        if(term == null || term.equals(mLastDispatchedTerm)){
+            return;
+        }
+        mLastDispatchedTerm = term;
+        mCallback.onSearchTermDispatched(term);
+    }
+
+    private static boolean isComposing(CharSequence term){
+        return term instanceof Spannable
+                && BaseInputConnection.getComposingSpanStart((Spannable) term) != -1;
+    }
+
+    interface Callback {
+        /**
+         * Called when a change to the search term is passed on
+         * @param term The search term
+         */
+        void onSearchTermDispatched(CharSequence term);
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2015 Christopher Beda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wanderingcan.persistentsearch;
+
+import android.support.annotation.DrawableRes;
+
+import java.util.Comparator;
+
+/**
+ * A suggestion returned by a {@link SuggestionProvider}. Unlike a SearchMenuItem, it can be
+ * created on any thread, and is turned into a SearchMenuItem once it reaches the SearchMenu.
+ * <p>
+ * When the suggestions of several providers are ordered by weight, with
+ * {@link PersistentSearchView#SUGGESTION_ORDER_WEIGHT}, their weights are compared with each
+ * other. Weights should then be between 0 and 1, 1 being the best a suggestion can be, and a
+ * provider with its own scale, such as counts or timestamps, should map it into that range.
+ * </p>
+ */
+public class Suggestion {
+
+    /**
+     * Orders Suggestions by their weight, highest weight first
+     */
+    public static final Comparator<Suggestion> WEIGHT_ORDER = new Comparator<Suggestion>() {
+        @Override
+        public int compare(Suggestion lhs, Suggestion rhs) {
+            return Double.compare(rhs.mWeight, lhs.mWeight);
+        }
+    };
+
+    private final int mId;
+    private final String mTitle;
+    private final double mWeight;
+    private int mIconResId;
+
+    /**
+     * Constructor for Suggestion
+     * @param id The id of the SearchMenuItem to show the suggestion in
+     * @param title The title to show for the suggestion
+     */
+    public Suggestion(int id, String title){
+        this(id, title, 0);
+    }
+
+    /**
+     * Constructor for Suggestion
+     * @param id The id of the SearchMenuItem to show the suggestion in
+     * @param title The title to show for the suggestion
+     * @param weight How good the suggestion is, suggestions with a higher weight are shown first.
+     *               Between 0 and 1 when it is ranked against the suggestions of other providers.
+     */
+    public Suggestion(int id, String title, double weight){
+        mId = id;
+        mTitle = title;
+        mWeight = weight;
+    }
+
+    /**
+     * Gets the id of the Suggestion
+     * @return The Suggestion id
+     */
+    public int getId(){
+        return mId;
+    }
+
+    /**
+     * Gets the Title to show for the Suggestion
+     * @return The Title of the Suggestion
+     */
+    public String getTitle(){
+        return mTitle;
+    }
+
+    /**
+     * Gets the weight of the Suggestion, suggestions with a higher weight are shown first
+     * @return The weight of the Suggestion
+     */
+    public double getWeight(){
+        return mWeight;
+    }
+
+    /**
+     * Gets the ResourceId of the icon for the Suggestion
+     * @return The resourceId of the icon, 0 if there is no icon
+     */
+    @DrawableRes
+    public int getIconResource(){
+        return mIconResId;
+    }
+
+    /**
+     * Sets the ResourceId for the icon of the SearchMenuItem the Suggestion is shown in
+     * @param iconResId The resourceId for the icon
+     */
+    public Suggestion setIcon(@DrawableRes int iconResId){
+        mIconResId = iconResId;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "Suggestion{" +
+                "\nId = " + mId +
+                "\nTitle = '" + mTitle + '\'' +
+                "\nWeight = " + mWeight +
+                '}';
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2015 Christopher Beda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wanderingcan.persistentsearch;
+
+import com.wanderingcan.persistentsearch.suggestions.TextFolder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Merges the suggestions of several SuggestionProviders into the SearchMenu as each of them
+ * arrives. By default suggestions are ranked by the order their providers were added in, then by
+ * the order each provider gave them in, so the rows of a fast provider stay where they are when
+ * the suggestions of a slower provider arrive after them. They can also be ranked by weight.
+ * <p>
+ * The lists of the providers are merged with a heap of the next suggestion of each provider.
+ * A title that more than one provider gives, ignoring case and accents, is only shown once in
+ * its best ranked place. The merged list is submitted to the SearchMenu, which only updates the
+ * rows that changed.
+ * </p>
+ */
+class SuggestionMerger {
+
+    private static final Comparator<Cursor> SOURCE_ORDER = new Comparator<Cursor>() {
+        @Override
+        public int compare(Cursor lhs, Cursor rhs) {
+            return lhs.mSource - rhs.mSource;
+        }
+    };
+
+    private static final Comparator<Cursor> WEIGHT_ORDER = new Comparator<Cursor>() {
+        @Override
+        public int compare(Cursor lhs, Cursor rhs) {
+            int result = Suggestion.WEIGHT_ORDER.compare(lhs.current(), rhs.current());
+            return result != 0 ? result : lhs.mSource - rhs.mSource;
+        }
+    };
+
+    private final SearchMenu mMenu;
+    private Comparator<Cursor> mOrder = SOURCE_ORDER;
+    //The sources in the order they were added, and the suggestions they are showing
+    private final ArrayList<Object> mSources = new ArrayList<>();
+    private final ArrayList<List<Suggestion>> mResults = new ArrayList<>();
+
+    SuggestionMerger(SearchMenu menu){
+        mMenu = menu;
+    }
+
+    /**
+     * Sets how the suggestions of the sources are ranked
+     * @param order Either {@link PersistentSearchView#SUGGESTION_ORDER_SOURCE} or
+     *              {@link PersistentSearchView#SUGGESTION_ORDER_WEIGHT}
+     */
+    void setOrder(int order){
+        Comparator<Cursor> comparator =
+                order == PersistentSearchView.SUGGESTION_ORDER_WEIGHT ? WEIGHT_ORDER : SOURCE_ORDER;
+        if(comparator != mOrder){
+            mOrder = comparator;
+            if(hasResults()){
+                submit();
+            }
+        }
+    }
+
+    /**
+     * Adds a source below the sources that were added before it
+     * @param source The source of suggestions
+     */
+    void addSource(Object source){
+        mSources.add(source);
+        mResults.add(Collections.<Suggestion>emptyList());
+    }
+
+    /**
+     * Removes a source, and its suggestions from the SearchMenu
+     * @param source The source of suggestions
+     */
+    void removeSource(Object source){
+        int index = mSources.indexOf(source);
+        if(index == -1){
+            return;
+        }
+        mSources.remove(index);
+        boolean showing = !mResults.remove(index).isEmpty();
+        if(showing){
+            submit();
+        }
+    }
+
+    /**
+     * Removes every source, and their suggestions from the SearchMenu
+     */
+    void removeAllSources(){
+        boolean showing = hasResults();
+        mSources.clear();
+        mResults.clear();
+        if(showing){
+            submit();
+        }
+    }
+
+    /**
+     * Replaces the suggestions of a source
+     * @param source The source of suggestions
+     * @param suggestions The suggestions, null for none
+     */
+    void setResults(Object source, List<Suggestion> suggestions){
+        int index = mSources.indexOf(source);
+        if(index == -1){
+            return;
+        }
+        List<Suggestion> results = suggestions == null ?
+                Collections.<Suggestion>emptyList() : limit(new ArrayList<>(suggestions));
+        if(results.isEmpty() && mResults.get(index).isEmpty()){
+            return;
+        }
+        mResults.set(index, results);
+        submit();
+    }
+
+    /**
+     * Adds a batch of suggestions after the suggestions of a source
+     * @param source The source of suggestions
+     * @param batch The suggestions to add
+     */
+    void appendResults(Object source, List<Suggestion> batch){
+        int index = mSources.indexOf(source);
+        if(index == -1){
+            return;
+        }
+        ArrayList<Suggestion> results = new ArrayList<>(mResults.get(index));
+        results.addAll(batch);
+        mResults.set(index, limit(results));
+        submit();
+    }
+
+    /**
+     * Forgets the suggestions of every source, without changing the SearchMenu
+     */
+    void clear(){
+        for(int i = 0; i < mResults.size(); i++){
+            mResults.set(i, Collections.<Suggestion>emptyList());
+        }
+    }
+
+    private boolean hasResults(){
+        for(List<Suggestion> results : mResults){
+            if(!results.isEmpty()){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * No source can show more suggestions than fit in the SearchMenu
+     */
+    private List<Suggestion> limit(ArrayList<Suggestion> suggestions){
+        int max = mMenu.maxSearchMenuItems();
+        if(suggestions.size() > max){
+            suggestions.subList(max, suggestions.size()).clear();
+        }
+        return suggestions;
+    }
+
+    private void submit(){
+        int max = mMenu.maxSearchMenuItems();
+        PriorityQueue<Cursor> heap = new PriorityQueue<>(Math.max(1, mResults.size()), mOrder);
+        for(int i = 0; i < mResults.size(); i++){
+            if(!mResults.get(i).isEmpty()){
+                heap.add(new Cursor(i, mResults.get(i)));
+            }
+        }
+
+        ArrayList<SearchMenuItem> items = new ArrayList<>();
+        HashSet<String> keys = new HashSet<>();
+        while(items.size() < max && !heap.isEmpty()){
+            Cursor cursor = heap.poll();
+            Suggestion suggestion = cursor.current();
+            //The first copy of a title is the best ranked one, and there is nothing to show
+            //for a suggestion without a title
+            if(suggestion.getTitle() != null && keys.add(normalize(suggestion.getTitle()))){
+                SearchMenuItem item = mMenu.createSearchMenuItem(suggestion.getId(),
+                        suggestion.getTitle(), items.size());
+                item.setSource(mSources.get(cursor.mSource));
+                if(suggestion.getIconResource() != 0){
+                    item.setIcon(suggestion.getIconResource());
+                }
+                items.add(item);
+            }
+            if(cursor.moveToNext()){
+                heap.add(cursor);
+            }
+        }
+        mMenu.submitItems(items);
+    }
+
+    private static String normalize(String title){
+        return TextFolder.fold(title.trim());
+    }
+
+    /**
+     * The next suggestion of one source
+     */
+    private static class Cursor {
+        final int mSource;
+        private final List<Suggestion> mSuggestions;
+        private int mIndex;
+
+        Cursor(int source, List<Suggestion> suggestions){
+            mSource = source;
+            mSuggestions = suggestions;
+        }
+
+        Suggestion current(){
+            return mSuggestions.get(mIndex);
+        }
+
+        boolean moveToNext(){
+            return ++mIndex < mSuggestions.size();
+        }
+    }
+}
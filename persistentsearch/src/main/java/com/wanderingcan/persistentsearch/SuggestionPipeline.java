@@ -0,0 +1,240 @@
+/*
+ * Copyright 2015 Christopher Beda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wanderingcan.persistentsearch;
+
+import android.support.v4.os.OperationCanceledException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs the queries for the {@link SuggestionProvider}s on background threads, and merges their
+ * results into the SearchMenu on the main thread as each provider publishes them. Each provider
+ * has its own serial Executor, so a slow provider does not hold up the others.
+ */
+class SuggestionPipeline {
+
+    private final SearchMenu mMenu;
+    private final SuggestionMerger mMerger;
+    private final ArrayList<Source> mSources = new ArrayList<>();
+
+    private long mTimeBudget = SuggestionQuery.NO_DEADLINE;
+    private boolean mRefine;
+
+    SuggestionPipeline(SearchMenu menu){
+        mMenu = menu;
+        mMerger = new SuggestionMerger(menu);
+    }
+
+    /**
+     * Adds a provider, its suggestions are shown after the ones of the providers added before it
+     * @param provider The provider to add
+     */
+    void addProvider(SuggestionProvider provider){
+        if(indexOf(provider) == -1){
+            Source source = new Source(provider);
+            mSources.add(source);
+            mMerger.addSource(source);
+        }
+    }
+
+    /**
+     * Removes a provider, and its suggestions from the SearchMenu
+     * @param provider The provider to remove
+     */
+    void removeProvider(SuggestionProvider provider){
+        int index = indexOf(provider);
+        if(index != -1){
+            Source source = mSources.remove(index);
+            source.cancel();
+            mMerger.removeSource(source);
+        }
+    }
+
+    /**
+     * Removes all the providers, and their suggestions from the SearchMenu
+     */
+    void removeAllProviders(){
+        for(Source source : mSources){
+            source.cancel();
+        }
+        mMerger.removeAllSources();
+        mSources.clear();
+    }
+
+    /**
+     * Returns if any providers have been added
+     * @return True if there are providers, false otherwise
+     */
+    boolean hasProviders(){
+        return !mSources.isEmpty();
+    }
+
+    /**
+     * Sets how the suggestions of the providers are ordered
+     * @param order Either {@link PersistentSearchView#SUGGESTION_ORDER_SOURCE} or
+     *              {@link PersistentSearchView#SUGGESTION_ORDER_WEIGHT}
+     */
+    void setOrder(int order){
+        mMerger.setOrder(order);
+    }
+
+    /**
+     * Sets the time each query has to show its suggestions
+     * @param timeBudget The time in milliseconds, or {@link SuggestionQuery#NO_DEADLINE}
+     * @param refine True to show the partial results at the deadline and then the full results,
+     *               false to only show the partial results
+     */
+    void setTimeBudget(long timeBudget, boolean refine){
+        mTimeBudget = timeBudget;
+        mRefine = refine;
+    }
+
+    /**
+     * Starts a query for the term with every provider, canceling the queries that are in flight.
+     * The suggestions for the last term stay until each provider has new ones.
+     * @param term The search term
+     */
+    void query(String term){
+        for(Source source : mSources){
+            source.query(term);
+        }
+    }
+
+    /**
+     * Cancels the queries that are in flight, their results will not be shown
+     */
+    void cancel(){
+        for(Source source : mSources){
+            source.cancel();
+        }
+    }
+
+    /**
+     * Cancels the queries that are in flight and forgets the suggestions that are shown, for when
+     * the SearchMenu is cleared
+     */
+    void clear(){
+        cancel();
+        mMerger.clear();
+    }
+
+    private int indexOf(SuggestionProvider provider){
+        for(int i = 0; i < mSources.size(); i++){
+            if(mSources.get(i).mProvider == provider){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Runs the queries of one provider
+     */
+    private class Source implements SuggestionQuery.OnResultsListener {
+
+        final SuggestionProvider mProvider;
+        private final Executor mExecutor;
+
+        private SuggestionQuery mActiveQuery;
+        //The query whose results are shown, batches from it are added to them
+        private SuggestionQuery mShownQuery;
+
+        Source(SuggestionProvider provider){
+            mProvider = provider;
+            mExecutor = SearchExecutors.newSerialExecutor();
+        }
+
+        void query(String term){
+            cancel();
+            final SuggestionQuery query = new SuggestionQuery(term, mMenu.maxSearchMenuItems(),
+                    mTimeBudget, mRefine, this);
+            mActiveQuery = query;
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if(query.isCanceled()){
+                        return;
+                    }
+                    final List<Suggestion> suggestions;
+                    try {
+                        suggestions = mProvider.onQuerySuggestions(query);
+                    } catch (OperationCanceledException e){
+                        return;
+                    }
+                    SearchExecutors.mainThread().post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if(isActive(query)){
+                                mActiveQuery = null;
+                                mShownQuery = query;
+                                mMerger.setResults(Source.this, suggestions);
+                            }
+                        }
+                    });
+                }
+            });
+        }
+
+        void cancel(){
+            if(mActiveQuery != null){
+                mActiveQuery.cancel();
+                mActiveQuery = null;
+            }
+        }
+
+        @Override
+        public void onPartialResults(final SuggestionQuery query, List<Suggestion> suggestions) {
+            //The provider keeps working on the list, so it is copied before it is posted
+            final ArrayList<Suggestion> partial = new ArrayList<>(suggestions);
+            SearchExecutors.mainThread().post(new Runnable() {
+                @Override
+                public void run() {
+                    if(isActive(query)){
+                        mShownQuery = query;
+                        mMerger.setResults(Source.this, partial);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onResults(final SuggestionQuery query, List<Suggestion> suggestions) {
+            final ArrayList<Suggestion> batch = new ArrayList<>(suggestions);
+            SearchExecutors.mainThread().post(new Runnable() {
+                @Override
+                public void run() {
+                    if(!isActive(query)){
+                        return;
+                    }
+                    if(mShownQuery == query){
+                        mMerger.appendResults(Source.this, batch);
+                    } else {
+                        //The first batch replaces the suggestions for the last term
+                        mShownQuery = query;
+                        mMerger.setResults(Source.this, batch);
+                    }
+                }
+            });
+        }
+
+        private boolean isActive(SuggestionQuery query){
+            return !query.isCanceled() && query == mActiveQuery;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2015 Christopher Beda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wanderingcan.persistentsearch;
+
+import android.support.annotation.WorkerThread;
+
+import java.util.List;
+
+/**
+ * Provides the suggestions that the PersistentSearchView shows in its SearchMenu
+ * @see PersistentSearchView#setSuggestionProvider(SuggestionProvider)
+ */
+public interface SuggestionProvider {
+
+    /**
+     * Called on a background thread when the search term changes. Calls are made one at a time,
+     * a new call is not made until the last one returns. If a newer term arrives the query is
+     * canceled, and its results are thrown away.
+     * @param query The query holding the search term
+     * @return The suggestions for the term, in the order to show them in
+     */
+    @WorkerThread
+    List<Suggestion> onQuerySuggestions(SuggestionQuery query);
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2015 Christopher Beda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wanderingcan.persistentsearch;
+
+import android.os.SystemClock;
+import android.support.v4.os.CancellationSignal;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A request for suggestions for a search term that is passed to a {@link SuggestionProvider}
+ */
+public class SuggestionQuery {
+
+    /**
+     * Used with {@link PersistentSearchView#setSuggestionTimeBudget(long, boolean)} for
+     * queries that have no deadline
+     */
+    public static final long NO_DEADLINE = 0;
+
+    private final String mTerm;
+    private final int mLimit;
+    private final State mState;
+
+    SuggestionQuery(String term, int limit){
+        this(term, limit, NO_DEADLINE, false, null);
+    }
+
+    /**
+     * @param timeBudget The time in milliseconds from now until the deadline, or NO_DEADLINE
+     * @param refine True if partial results are shown and then refined
+     * @param listener Shows the results that are published, or null if they are not shown
+     */
+    SuggestionQuery(String term, int limit, long timeBudget, boolean refine, OnResultsListener listener){
+        this(term, limit, new State(new CancellationSignal(), new AtomicBoolean(),
+                timeBudget == NO_DEADLINE ? NO_DEADLINE : SystemClock.uptimeMillis() + timeBudget,
+                refine, listener));
+    }
+
+    private SuggestionQuery(String term, int limit, State state){
+        mTerm = term;
+        mLimit = limit;
+        mState = state;
+    }
+
+    /**
+     * Gets the search term to find suggestions for
+     * @return The search term, can be empty when the search is opened with no text
+     */
+    public String getTerm(){
+        return mTerm;
+    }
+
+    /**
+     * Gets the most suggestions the SearchMenu can show, any more are not shown
+     * @return The max number of suggestions
+     */
+    public int getLimit(){
+        return mLimit;
+    }
+
+    /**
+     * Returns if the query has been canceled because a newer search term arrived. Long running
+     * providers should check this and stop early.
+     * @return True if the query has been canceled, false otherwise
+     */
+    public boolean isCanceled(){
+        return mState.mCancellationSignal.isCanceled();
+    }
+
+    /**
+     * Gets the CancellationSignal for the query, to cancel work such as network requests when
+     * the query is canceled
+     * @return The CancellationSignal for the query
+     */
+    public CancellationSignal getCancellationSignal(){
+        return mState.mCancellationSignal;
+    }
+
+    /**
+     * Gets the time the suggestions should be shown by
+     * @return The deadline in the {@link SystemClock#uptimeMillis()} time base, or
+     * {@link #NO_DEADLINE}
+     */
+    public long getDeadline(){
+        return mState.mDeadline;
+    }
+
+    /**
+     * Returns if the query has a deadline that has passed. Long running providers should check
+     * this, and then call {@link #publishPartialResults(List)} with the best suggestions they
+     * have found so far.
+     * @return True if the deadline has passed, false otherwise
+     */
+    public boolean isPastDeadline(){
+        return mState.mDeadline != NO_DEADLINE && SystemClock.uptimeMillis() >= mState.mDeadline;
+    }
+
+    /**
+     * Passes on the best suggestions found so far once the deadline has passed. Only the first
+     * partial results of a query are used, and empty results are not shown so the SearchMenu
+     * does not flicker empty before the full results arrive.
+     * @param suggestions The best suggestions found so far, in the order to show them
+     * @return True if the partial results are shown and the provider should finish its search
+     * and return the full results, false if it should stop and return what it has found, which
+     * marks the query as incomplete
+     */
+    public boolean publishPartialResults(List<Suggestion> suggestions){
+        OnResultsListener listener = mState.mListener;
+        if(listener == null || !mState.mRefine){
+            markIncomplete();
+            return false;
+        }
+        if(!suggestions.isEmpty() && mState.mPublished.compareAndSet(false, true)){
+            listener.onPartialResults(this, suggestions);
+        }
+        return true;
+    }
+
+    /**
+     * Marks that the provider returned only part of the suggestions it would have found, such
+     * as when it stopped at the deadline, so they are not remembered as the answer for the term.
+     * The queries made from this one with {@link #withLimit(int)} and {@link #withoutDeadline()}
+     * share the mark.
+     */
+    public void markIncomplete(){
+        mState.mIncomplete.set(true);
+    }
+
+    /**
+     * Returns if the suggestions for the query are incomplete, see {@link #markIncomplete()}
+     * @return True if a provider stopped before finding all of its suggestions
+     */
+    public boolean isIncomplete(){
+        return mState.mIncomplete.get();
+    }
+
+    /**
+     * Passes on a batch of suggestions as soon as it is found, such as a page of results from a
+     * server, so it is shown without waiting for the provider to finish. Batches are shown after
+     * the ones published before them. The list the provider returns replaces all of its batches,
+     * so it should hold every suggestion that was published.
+     * @param suggestions The batch of suggestions, in the order to show them
+     */
+    public void publishResults(List<Suggestion> suggestions){
+        OnResultsListener listener = mState.mListener;
+        if(listener != null && !suggestions.isEmpty()){
+            listener.onResults(this, suggestions);
+        }
+    }
+
+    /**
+     * Creates a query for the same term with a different limit, that is canceled along with this
+     * query. The new query publishes results the same way as this one, so providers that change
+     * the results of another provider should make it from {@link #withoutDeadline()} instead.
+     * @param limit The max number of suggestions for the new query
+     * @return The new query
+     */
+    public SuggestionQuery withLimit(int limit){
+        return new SuggestionQuery(mTerm, limit, mState);
+    }
+
+    /**
+     * Creates a query for the same term and limit with no deadline, that is canceled along with
+     * this query. Used by providers that combine the results of other providers and keep to the
+     * deadline themselves, as the partial results of one provider are not the best of them all.
+     * @return The new query
+     */
+    public SuggestionQuery withoutDeadline(){
+        return new SuggestionQuery(mTerm, mLimit,
+                new State(mState.mCancellationSignal, mState.mIncomplete, NO_DEADLINE, false,
+                        null));
+    }
+
+    void cancel(){
+        mState.mCancellationSignal.cancel();
+    }
+
+    /**
+     * Shows the results a query publishes before its provider finishes. Called on the thread
+     * the provider runs on.
+     */
+    interface OnResultsListener {
+        void onPartialResults(SuggestionQuery query, List<Suggestion> suggestions);
+
+        void onResults(SuggestionQuery query, List<Suggestion> suggestions);
+    }
+
+    /**
+     * The state shared by a query and the queries made from it with {@link #withLimit(int)}
+     */
+    private static class State {
+        final CancellationSignal mCancellationSignal;
+        final AtomicBoolean mIncomplete;
+        final long mDeadline;
+        final boolean mRefine;
+        final OnResultsListener mListener;
+        final AtomicBoolean mPublished = new AtomicBoolean();
+
+        State(CancellationSignal cancellationSignal, AtomicBoolean incomplete, long deadline,
+              boolean refine, OnResultsListener listener){
+            mCancellationSignal = cancellationSignal;
+            mIncomplete = incomplete;
+            mDeadline = deadline;
+            mRefine = refine;
+            mListener = listener;
+        }
+    }
+}
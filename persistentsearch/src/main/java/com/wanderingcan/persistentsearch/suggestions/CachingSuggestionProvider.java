@@ -0,0 +1,151 @@
+/*
+ * Copyright 2015 Christopher Beda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wanderingcan.persistentsearch.suggestions;
+
+import android.os.SystemClock;
+import android.support.v4.util.LruCache;
+
+import com.wanderingcan.persistentsearch.Suggestion;
+import com.wanderingcan.persistentsearch.SuggestionProvider;
+import com.wanderingcan.persistentsearch.SuggestionQuery;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A SuggestionProvider that remembers the suggestions of another SuggestionProvider for the
+ * most recent search terms, so typing a term again shows its suggestions without looking
+ * them up again.
+ * <p>
+ * Terms are matched ignoring case, accents and surrounding whitespace. Suggestions from a
+ * canceled query, or one that is {@link SuggestionQuery#isIncomplete() incomplete}, are not
+ * remembered.
+ * </p>
+ */
+public class CachingSuggestionProvider implements SuggestionProvider {
+
+    /**
+     * Used with {@link #setTimeToLive(long)} for suggestions that never expire
+     */
+    public static final long NO_EXPIRY = 0;
+
+    private final SuggestionProvider mProvider;
+    private final LruCache<String, Entry> mCache;
+    private volatile long mTimeToLive = NO_EXPIRY;
+
+    private final AtomicInteger mHitCount = new AtomicInteger();
+    private final AtomicInteger mMissCount = new AtomicInteger();
+
+    /**
+     * Constructor for CachingSuggestionProvider
+     * @param provider The SuggestionProvider to cache
+     * @param maxTerms The most search terms to remember suggestions for
+     */
+    public CachingSuggestionProvider(SuggestionProvider provider, int maxTerms){
+        mProvider = provider;
+        mCache = new LruCache<>(maxTerms);
+    }
+
+    /**
+     * Sets how long suggestions are remembered for
+     * @param timeToLiveMillis The time in milliseconds, or {@link #NO_EXPIRY}
+     */
+    public void setTimeToLive(long timeToLiveMillis){
+        mTimeToLive = timeToLiveMillis;
+    }
+
+    /**
+     * Forgets the suggestions for the search term, such as when the data behind it has changed
+     * @param term The search term
+     */
+    public void invalidate(String term){
+        mCache.remove(normalize(term));
+    }
+
+    /**
+     * Forgets the suggestions for all search terms
+     */
+    public void invalidateAll(){
+        mCache.evictAll();
+    }
+
+    /**
+     * Gets the number of queries that were answered from the cache
+     * @return The hit count
+     */
+    public int getHitCount(){
+        return mHitCount.get();
+    }
+
+    /**
+     * Gets the number of queries that had to be passed on to the cached SuggestionProvider
+     * @return The miss count
+     */
+    public int getMissCount(){
+        return mMissCount.get();
+    }
+
+    @Override
+    public List<Suggestion> onQuerySuggestions(SuggestionQuery query) {
+        String key = normalize(query.getTerm());
+        Entry entry = mCache.get(key);
+        if(entry != null && entry.isUsable(query.getLimit(), mTimeToLive)){
+            mHitCount.incrementAndGet();
+            return entry.get(query.getLimit());
+        }
+
+        mMissCount.incrementAndGet();
+        List<Suggestion> suggestions = mProvider.onQuerySuggestions(query);
+        //A provider that stopped at the deadline only found part of its results
+        if(suggestions != null && !query.isCanceled() && !query.isIncomplete()){
+            mCache.put(key, new Entry(suggestions, query.getLimit()));
+        }
+        return suggestions;
+    }
+
+    private static String normalize(String term){
+        return term == null ? "" : TextFolder.fold(term.trim());
+    }
+
+    private static class Entry {
+        final List<Suggestion> mSuggestions;
+        final int mLimit;
+        final long mTime;
+
+        Entry(List<Suggestion> suggestions, int limit){
+            mSuggestions = Collections.unmodifiableList(suggestions);
+            mLimit = limit;
+            mTime = SystemClock.elapsedRealtime();
+        }
+
+        boolean isUsable(int limit, long timeToLive){
+            if(timeToLive != NO_EXPIRY && SystemClock.elapsedRealtime() - mTime > timeToLive){
+                return false;
+            }
+            //Fewer suggestions than the old limit means there were no more to find
+            return limit <= mLimit || mSuggestions.size() < mLimit;
+        }
+
+        List<Suggestion> get(int limit){
+            if(mSuggestions.size() <= limit){
+                return mSuggestions;
+            }
+            return mSuggestions.subList(0, limit);
+        }
+    }
+}
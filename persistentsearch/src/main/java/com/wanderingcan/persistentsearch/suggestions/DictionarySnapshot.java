@@ -0,0 +1,269 @@
+/*
+ * Copyright 2015 Christopher Beda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wanderingcan.persistentsearch.suggestions;
+
+import android.support.annotation.DrawableRes;
+import android.util.Log;
+
+import com.wanderingcan.persistentsearch.Suggestion;
+import com.wanderingcan.persistentsearch.SuggestionProvider;
+import com.wanderingcan.persistentsearch.SuggestionQuery;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A SuggestionProvider that keeps a {@link FrontCodedDictionary} in a snapshot file, so the
+ * dictionary only has to be built once instead of every time the app starts.
+ * <p>
+ * The snapshot is opened on a background thread as soon as the DictionarySnapshot is created.
+ * Opening memory maps the file and reads it through once to check it, after that the parts that
+ * are searched are paged in as they are needed. If there is no snapshot, it was made for another
+ * data version or by a version of the library that can not read it, or it is truncated or
+ * damaged, the dictionary is built from the {@link Source} and the snapshot is written for the
+ * next start. Queries made before the snapshot is open wait for it. A snapshot that turns out to
+ * be damaged while it is searched is built again in the same way.
+ * </p>
+ * A snapshot can also be made when the app is built with {@link #write(FrontCodedDictionary,
+ * int, File)}, and copied into place before the DictionarySnapshot is created.
+ */
+public class DictionarySnapshot implements SuggestionProvider {
+
+    private static final String TAG = "DictionarySnapshot";
+
+    static final int MAGIC = 0x50535331; //PSS1
+    //Magic and data version, followed by the dictionary
+    private static final int HEADER_SIZE = 2 * 4;
+
+    /**
+     * Supplies the suggestions to build the dictionary from, when there is no usable snapshot
+     */
+    public interface Source {
+
+        /**
+         * Called on a background thread to get the suggestions for the dictionary
+         * @return The suggestions
+         * @throws IOException If the suggestions could not be read
+         */
+        Collection<Suggestion> getSuggestions() throws IOException;
+    }
+
+    private final File mFile;
+    private final int mDataVersion;
+    private final Source mSource;
+    private final CountDownLatch mLoaded = new CountDownLatch(1);
+    private final AtomicBoolean mRebuilding = new AtomicBoolean();
+
+    private volatile FrontCodedDictionary mDictionary;
+    private volatile int mIconResId;
+
+    /**
+     * Constructor for DictionarySnapshot
+     * @param file The file to keep the snapshot in
+     * @param dataVersion The version of the suggestions from the source. A snapshot with a
+     *                    different data version is built again.
+     * @param source Supplies the suggestions when the snapshot has to be built
+     */
+    public DictionarySnapshot(File file, int dataVersion, Source source){
+        mFile = file;
+        mDataVersion = dataVersion;
+        mSource = source;
+        startThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mDictionary = load();
+                } finally {
+                    mLoaded.countDown();
+                }
+            }
+        });
+    }
+
+    private static void startThread(Runnable runnable){
+        Thread thread = new Thread(runnable, TAG);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Writes the dictionary to a snapshot file. The snapshot is written to a temporary file and
+     * then renamed, so the file always holds either the old or the new snapshot.
+     * @param dictionary The dictionary to write
+     * @param dataVersion The version of the suggestions in the dictionary
+     * @param file The file to write the snapshot to
+     * @throws IOException If the snapshot could not be written
+     */
+    public static void write(FrontCodedDictionary dictionary, int dataVersion, File file)
+            throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeInt(MAGIC);
+            data.writeInt(dataVersion);
+            dictionary.writeTo(data);
+            data.flush();
+            out.getFD().sync();
+        } catch (IOException e) {
+            out.close();
+            if(!temp.delete()){
+                Log.w(TAG, "Unable to delete " + temp);
+            }
+            throw e;
+        }
+        out.close();
+        if(!temp.renameTo(file)){
+            throw new IOException("Unable to replace " + file);
+        }
+    }
+
+    /**
+     * Sets the ResourceId for the icon shown next to the suggestions in the SearchMenu
+     * @param iconResId The resourceId for the icon, 0 for no icon
+     */
+    public void setIcon(@DrawableRes int iconResId){
+        mIconResId = iconResId;
+        FrontCodedDictionary dictionary = mDictionary;
+        if(dictionary != null){
+            dictionary.setIcon(iconResId);
+        }
+    }
+
+    /**
+     * Gets the dictionary, waiting for the snapshot to be opened or built
+     * @return The dictionary, or null if it could not be opened or built
+     */
+    public FrontCodedDictionary getDictionary(){
+        try {
+            mLoaded.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return mDictionary;
+    }
+
+    @Override
+    public List<Suggestion> onQuerySuggestions(SuggestionQuery query) {
+        FrontCodedDictionary dictionary = getDictionary();
+        if(dictionary == null){
+            return new ArrayList<>();
+        }
+        try {
+            return dictionary.onQuerySuggestions(query);
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Rebuilding the damaged snapshot " + mFile, e);
+            rebuild(dictionary);
+            return new ArrayList<>();
+        }
+    }
+
+    /**
+     * Builds the dictionary again on the snapshot thread, replacing the damaged one. Queries
+     * find no suggestions until it is built.
+     */
+    private void rebuild(FrontCodedDictionary damaged){
+        if(mDictionary != damaged || !mRebuilding.compareAndSet(false, true)){
+            return;
+        }
+        mDictionary = null;
+        startThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    FrontCodedDictionary dictionary = build();
+                    if(dictionary != null){
+                        dictionary.setIcon(mIconResId);
+                    }
+                    mDictionary = dictionary;
+                } finally {
+                    mRebuilding.set(false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Opens the snapshot, or builds and writes it if it can not be used. Runs on the snapshot
+     * thread.
+     */
+    private FrontCodedDictionary load(){
+        FrontCodedDictionary dictionary = open();
+        if(dictionary == null){
+            dictionary = build();
+        }
+        if(dictionary != null){
+            dictionary.setIcon(mIconResId);
+        }
+        return dictionary;
+    }
+
+    private FrontCodedDictionary open(){
+        if(!mFile.exists()){
+            return null;
+        }
+        try {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(mFile, "r");
+            try {
+                FileChannel channel = randomAccessFile.getChannel();
+                //The mapping stays valid after the channel is closed
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if(buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC
+                        || buffer.getInt(4) != mDataVersion){
+                    return null;
+                }
+                buffer.position(HEADER_SIZE);
+                return new FrontCodedDictionary(buffer);
+            } finally {
+                randomAccessFile.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to open the snapshot " + mFile, e);
+        } catch (IllegalArgumentException e) {
+            //Written by a version of the library that can not be read, truncated or damaged
+            Log.i(TAG, "Rebuilding the snapshot " + mFile + ": " + e.getMessage());
+        }
+        return null;
+    }
+
+    private FrontCodedDictionary build(){
+        FrontCodedDictionary dictionary;
+        try {
+            dictionary = FrontCodedDictionary.build(mSource.getSuggestions());
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read the suggestions for the snapshot", e);
+            return null;
+        }
+        try {
+            write(dictionary, mDataVersion, mFile);
+        } catch (IOException e) {
+            //The built dictionary can still be used until the app is started again
+            Log.e(TAG, "Unable to write the snapshot " + mFile, e);
+        }
+        return dictionary;
+    }
+}
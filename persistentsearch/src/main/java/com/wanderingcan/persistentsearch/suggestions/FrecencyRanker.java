@@ -0,0 +1,235 @@
+/*
+ * Copyright 2015 Christopher Beda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wanderingcan.persistentsearch.suggestions;
+
+import com.wanderingcan.persistentsearch.SearchRecorder;
+import com.wanderingcan.persistentsearch.Suggestion;
+import com.wanderingcan.persistentsearch.SuggestionProvider;
+import com.wanderingcan.persistentsearch.SuggestionQuery;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A SuggestionProvider that reorders the suggestions of another SuggestionProvider by how often
+ * and how recently each one was searched for, so the suggestions the user picks the most are
+ * shown in the first rows of the SearchMenu.
+ * <p>
+ * Every search adds one to the score of its term, and scores halve every half-life. Suggestions
+ * that were never searched for, or whose score has faded away, keep the order the wrapped
+ * SuggestionProvider gave them, after the scored ones. Add the ranker to the
+ * PersistentSearchView with {@code addSearchRecorder()} so it sees every search.
+ * </p>
+ * <p>
+ * The wrapped SuggestionProvider is queried with no deadline, since its partial results are
+ * not ranked yet. The ranked suggestions are shown once it finishes.
+ * </p>
+ */
+public class FrecencyRanker implements SuggestionProvider, SearchRecorder {
+
+    /**
+     * The default half-life of a search, one week
+     */
+    public static final long DEFAULT_HALF_LIFE = 7L * 24 * 60 * 60 * 1000;
+
+    private static final int DEFAULT_MAX_ENTRIES = 500;
+    //Asks for more suggestions than are shown, so searched suggestions further down can move up
+    private static final int CANDIDATE_FACTOR = 4;
+    //Scores below this are treated as never searched, about 4 half-lives for a single search
+    private static final double MIN_SCORE = 0.05;
+
+    private static final Comparator<Ranked> RANK_ORDER = new Comparator<Ranked>() {
+        @Override
+        public int compare(Ranked lhs, Ranked rhs) {
+            int result = Double.compare(rhs.mScore, lhs.mScore);
+            if(result == 0){
+                result = lhs.mIndex - rhs.mIndex;
+            }
+            return result;
+        }
+    };
+
+    private final SuggestionProvider mProvider;
+    private final double mDecayRate;
+    private final int mMaxEntries;
+    //The log of each score scaled to time zero, adding a search never has to decay every score
+    private final HashMap<String, Double> mScores = new HashMap<>();
+
+    /**
+     * Constructor for FrecencyRanker with a half-life of {@link #DEFAULT_HALF_LIFE}
+     * @param provider The SuggestionProvider to reorder
+     */
+    public FrecencyRanker(SuggestionProvider provider){
+        this(provider, DEFAULT_HALF_LIFE, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Constructor for FrecencyRanker
+     * @param provider The SuggestionProvider to reorder
+     * @param halfLifeMillis The time in milliseconds for the score of a search to halve
+     * @param maxEntries The most search terms to keep scores for, the lowest scores are
+     *                   forgotten first
+     */
+    public FrecencyRanker(SuggestionProvider provider, long halfLifeMillis, int maxEntries){
+        if(halfLifeMillis <= 0){
+            throw new IllegalArgumentException("halfLifeMillis must be greater than 0");
+        }
+        mProvider = provider;
+        mDecayRate = Math.log(2) / halfLifeMillis;
+        mMaxEntries = Math.max(1, maxEntries);
+    }
+
+    @Override
+    public void recordSearch(String term) {
+        record(term, System.currentTimeMillis());
+    }
+
+    /**
+     * Adds a search for the term at the given time, such as to seed the ranker from a saved
+     * search history
+     * @param term The term that was searched for
+     * @param timeMillis The time of the search, from {@link System#currentTimeMillis()}
+     */
+    public synchronized void record(String term, long timeMillis){
+        String key = normalize(term);
+        if(key.length() == 0){
+            return;
+        }
+        double value = mDecayRate * timeMillis;
+        Double current = mScores.get(key);
+        if(current != null){
+            value = logAdd(current, value);
+        }
+        mScores.put(key, value);
+        if(mScores.size() > mMaxEntries){
+            trim(timeMillis);
+        }
+    }
+
+    /**
+     * Gets the current score of the term
+     * @param term The search term
+     * @return The score, 0 if the term was never searched for or its score has faded away
+     */
+    public synchronized double getScore(String term){
+        Double value = mScores.get(normalize(term));
+        return value == null ? 0 : score(value, mDecayRate * System.currentTimeMillis());
+    }
+
+    /**
+     * Forgets the score of the term
+     * @param term The search term
+     */
+    public synchronized void remove(String term){
+        mScores.remove(normalize(term));
+    }
+
+    /**
+     * Forgets the scores of all search terms
+     */
+    public synchronized void clear(){
+        mScores.clear();
+    }
+
+    @Override
+    public List<Suggestion> onQuerySuggestions(SuggestionQuery query) {
+        int limit = query.getLimit();
+        int candidates = limit > Integer.MAX_VALUE / CANDIDATE_FACTOR ?
+                Integer.MAX_VALUE : limit * CANDIDATE_FACTOR;
+        //The candidates are not ranked yet, so the wrapped provider must not publish them
+        List<Suggestion> suggestions = mProvider.onQuerySuggestions(
+                query.withoutDeadline().withLimit(candidates));
+        if(suggestions == null || suggestions.isEmpty()){
+            return suggestions;
+        }
+
+        TopK<Ranked> top = new TopK<>(limit, RANK_ORDER);
+        synchronized (this) {
+            double now = mDecayRate * System.currentTimeMillis();
+            for(int i = 0; i < suggestions.size(); i++){
+                Suggestion suggestion = suggestions.get(i);
+                Double value = mScores.get(normalize(suggestion.getTitle()));
+                top.offer(new Ranked(suggestion, value == null ? 0 : score(value, now), i));
+            }
+        }
+
+        List<Ranked> ranked = top.toList();
+        ArrayList<Suggestion> results = new ArrayList<>(ranked.size());
+        for(int i = 0; i < ranked.size(); i++){
+            results.add(ranked.get(i).mSuggestion);
+        }
+        return results;
+    }
+
+    /**
+     * Forgets the terms whose scores have faded away, then the lowest scores, until the ranker
+     * is back under its max entries
+     */
+    private void trim(long timeMillis){
+        double now = mDecayRate * timeMillis;
+        Iterator<Double> values = mScores.values().iterator();
+        while(values.hasNext()){
+            if(score(values.next(), now) == 0){
+                values.remove();
+            }
+        }
+        while(mScores.size() > mMaxEntries){
+            String lowest = null;
+            double lowestValue = Double.POSITIVE_INFINITY;
+            for(Map.Entry<String, Double> entry : mScores.entrySet()){
+                if(entry.getValue() < lowestValue){
+                    lowest = entry.getKey();
+                    lowestValue = entry.getValue();
+                }
+            }
+            mScores.remove(lowest);
+        }
+    }
+
+    private static double score(double value, double now){
+        double score = Math.exp(value - now);
+        return score < MIN_SCORE ? 0 : score;
+    }
+
+    /**
+     * Adds two scores that are stored as logs, without leaving the log domain
+     */
+    private static double logAdd(double a, double b){
+        double max = Math.max(a, b);
+        return max + Math.log1p(Math.exp(Math.min(a, b) - max));
+    }
+
+    private static String normalize(String term){
+        return term == null ? "" : TextFolder.fold(term.trim());
+    }
+
+    private static class Ranked {
+        final Suggestion mSuggestion;
+        final double mScore;
+        final int mIndex;
+
+        Ranked(Suggestion suggestion, double score, int index){
+            mSuggestion = suggestion;
+            mScore = score;
+            mIndex = index;
+        }
+    }
+}
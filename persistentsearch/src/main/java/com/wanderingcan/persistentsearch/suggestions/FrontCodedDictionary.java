@@ -0,0 +1,505 @@
+/*
+ * Copyright 2015 Christopher Beda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wanderingcan.persistentsearch.suggestions;
+
+import android.support.annotation.DrawableRes;
+
+import com.wanderingcan.persistentsearch.Suggestion;
+import com.wanderingcan.persistentsearch.SuggestionProvider;
+import com.wanderingcan.persistentsearch.SuggestionQuery;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A read only dictionary of suggestions that is kept outside of the Java heap, for suggesting
+ * from large lists such as hundreds of thousands of place names.
+ * <p>
+ * The titles are sorted ignoring case and accents, and stored as UTF-8 in blocks of
+ * {@value #BLOCK_SIZE}. The first title of a block is stored whole, and every other title only
+ * stores the bytes that differ from the title before it. The blocks are kept in a direct or
+ * memory mapped ByteBuffer, and a search binary searches for the blocks that hold titles
+ * starting with the search term. Each block also stores its highest weight, so blocks that can
+ * not make it into the results are skipped without being decoded.
+ * </p>
+ * Build a dictionary with {@link #build(Collection)}, save it with
+ * {@link #writeTo(OutputStream)}, and map a saved dictionary with {@link #open(File)}. The
+ * header holds the length and a CRC32 of the dictionary, which are checked when a saved
+ * dictionary is read, so a truncated or damaged file is not used.
+ * The dictionary can be searched from many threads at once.
+ */
+public class FrontCodedDictionary implements SuggestionProvider {
+
+    static final int MAGIC = 0x50534644; //PSFD
+    static final int VERSION = 4;
+    static final int BLOCK_SIZE = 16;
+
+    //Magic, version, entry count, block size, block count, length and the CRC32 of the rest
+    private static final int HEADER_SIZE = 7 * 4;
+    private static final int LENGTH_OFFSET = 5 * 4;
+    private static final int CRC_OFFSET = 6 * 4;
+    //The offset and the highest weight of each block
+    private static final int BLOCK_ENTRY_SIZE = 4 + 8;
+
+    //How many blocks are searched between checks for a canceled query or a passed deadline
+    private static final int CHECK_BLOCKS = 64;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final Comparator<Suggestion> KEY_ORDER = new Comparator<Suggestion>() {
+        @Override
+        public int compare(Suggestion lhs, Suggestion rhs) {
+            String left = lhs.getTitle();
+            String right = rhs.getTitle();
+            int length = Math.min(left.length(), right.length());
+            for(int i = 0; i < length; i++){
+                int result = TextFolder.fold(left.charAt(i)) - TextFolder.fold(right.charAt(i));
+                if(result != 0){
+                    return result;
+                }
+            }
+            return left.length() - right.length();
+        }
+    };
+
+    private final ByteBuffer mBuffer;
+    private final int mSize;
+    private final int mBlockSize;
+    private final int mBlockCount;
+    private volatile int mIconResId;
+
+    /**
+     * Constructor for FrontCodedDictionary, reading a dictionary that was written by
+     * {@link #writeTo(OutputStream)}. The whole dictionary is read once to check its CRC32.
+     * @param buffer The buffer holding the dictionary, from its position to its limit
+     * @throws IllegalArgumentException If the buffer does not hold a dictionary this version can
+     * read, or the dictionary is truncated or damaged
+     */
+    public FrontCodedDictionary(ByteBuffer buffer){
+        this(buffer, true);
+    }
+
+    private FrontCodedDictionary(ByteBuffer buffer, boolean checkCrc){
+        mBuffer = buffer.slice();
+        if(mBuffer.capacity() < HEADER_SIZE || mBuffer.getInt(0) != MAGIC){
+            throw new IllegalArgumentException("Not a FrontCodedDictionary");
+        }
+        if(mBuffer.getInt(4) != VERSION){
+            throw new IllegalArgumentException("Unsupported FrontCodedDictionary version "
+                    + mBuffer.getInt(4));
+        }
+        mSize = mBuffer.getInt(8);
+        mBlockSize = mBuffer.getInt(12);
+        mBlockCount = mBuffer.getInt(16);
+        if(mSize < 0 || mBlockSize <= 0 || mBlockCount != (mSize + mBlockSize - 1) / mBlockSize
+                || HEADER_SIZE + (long) mBlockCount * BLOCK_ENTRY_SIZE > mBuffer.capacity()){
+            throw new IllegalArgumentException("Corrupt FrontCodedDictionary header");
+        }
+        if(mBuffer.getInt(LENGTH_OFFSET) != mBuffer.capacity()){
+            throw new IllegalArgumentException("Truncated FrontCodedDictionary, "
+                    + mBuffer.capacity() + " of " + mBuffer.getInt(LENGTH_OFFSET) + " bytes");
+        }
+        if(checkCrc && mBuffer.getInt(CRC_OFFSET) != crc(mBuffer)){
+            throw new IllegalArgumentException("Damaged FrontCodedDictionary, bad CRC32");
+        }
+        int dataStart = HEADER_SIZE + mBlockCount * BLOCK_ENTRY_SIZE;
+        for(int block = 0; block < mBlockCount; block++){
+            int offset = mBuffer.getInt(HEADER_SIZE + block * BLOCK_ENTRY_SIZE);
+            if(offset < dataStart || offset >= mBuffer.capacity()){
+                throw new IllegalArgumentException("Corrupt FrontCodedDictionary block table");
+            }
+        }
+    }
+
+    /**
+     * Builds a dictionary from the suggestions, in a direct ByteBuffer. The ids of the
+     * suggestions are not kept, each suggestion gets the id of its place in the dictionary.
+     * @param suggestions The suggestions to add, ones without a title are skipped
+     * @return The dictionary
+     */
+    public static FrontCodedDictionary build(Collection<Suggestion> suggestions){
+        ArrayList<Suggestion> sorted = new ArrayList<>(suggestions.size());
+        for(Suggestion suggestion : suggestions){
+            if(suggestion.getTitle() != null){
+                sorted.add(suggestion);
+            }
+        }
+        Collections.sort(sorted, KEY_ORDER);
+
+        int blockCount = (sorted.size() + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        int[] offsets = new int[blockCount];
+        double[] maxWeights = new double[blockCount];
+        Output data = new Output();
+        int dataStart = HEADER_SIZE + blockCount * BLOCK_ENTRY_SIZE;
+        byte[] previous = null;
+        for(int i = 0; i < sorted.size(); i++){
+            Suggestion suggestion = sorted.get(i);
+            byte[] bytes = suggestion.getTitle().getBytes(UTF_8);
+            double weight = suggestion.getWeight();
+            int block = i / BLOCK_SIZE;
+            if(i % BLOCK_SIZE == 0){
+                offsets[block] = dataStart + data.size();
+                maxWeights[block] = weight;
+                data.writeVarInt(bytes.length);
+                data.write(bytes, 0, bytes.length);
+            } else {
+                int shared = sharedPrefix(previous, bytes);
+                maxWeights[block] = Math.max(maxWeights[block], weight);
+                data.writeVarInt(shared);
+                data.writeVarInt(bytes.length - shared);
+                data.write(bytes, shared, bytes.length - shared);
+            }
+            data.writeDouble(weight);
+            previous = bytes;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(dataStart + data.size());
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(sorted.size());
+        buffer.putInt(BLOCK_SIZE);
+        buffer.putInt(blockCount);
+        buffer.putInt(buffer.capacity());
+        buffer.putInt(0);
+        for(int i = 0; i < blockCount; i++){
+            buffer.putInt(offsets[i]);
+            buffer.putDouble(maxWeights[i]);
+        }
+        buffer.put(data.getBuffer(), 0, data.size());
+        buffer.flip();
+        buffer.putInt(CRC_OFFSET, crc(buffer));
+        return new FrontCodedDictionary(buffer, false);
+    }
+
+    /**
+     * Works out the CRC32 of everything after the header. CRC32 can only read a ByteBuffer from
+     * API 26, so the bytes are copied out in chunks.
+     */
+    private static int crc(ByteBuffer buffer){
+        ByteBuffer data = buffer.duplicate();
+        data.clear();
+        data.position(HEADER_SIZE);
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[8192];
+        while(data.hasRemaining()){
+            int length = Math.min(chunk.length, data.remaining());
+            data.get(chunk, 0, length);
+            crc.update(chunk, 0, length);
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Opens a dictionary that was written by {@link #writeTo(OutputStream)}. The file is memory
+     * mapped, and read through once to check it, after which it is paged in as it is searched.
+     * @param file The file holding the dictionary
+     * @return The dictionary
+     * @throws IOException If the file can not be mapped, or does not hold a dictionary this
+     * version can read
+     */
+    public static FrontCodedDictionary open(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            //The mapping stays valid after the channel is closed
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new FrontCodedDictionary(buffer);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Unable to read " + file + ": " + e.getMessage());
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Writes the dictionary, so it can be opened again with {@link #open(File)}
+     * @param out The stream to write to, it is not closed
+     * @throws IOException If the dictionary could not be written
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        ByteBuffer buffer = mBuffer.duplicate();
+        buffer.clear();
+        WritableByteChannel channel = Channels.newChannel(out);
+        while(buffer.hasRemaining()){
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Gets the number of suggestions in the dictionary
+     * @return The number of suggestions
+     */
+    public int size(){
+        return mSize;
+    }
+
+    /**
+     * Sets the ResourceId for the icon shown next to the suggestions in the SearchMenu
+     * @param iconResId The resourceId for the icon, 0 for no icon
+     */
+    public void setIcon(@DrawableRes int iconResId){
+        mIconResId = iconResId;
+    }
+
+    /**
+     * Finds the highest weighted suggestions whose titles start with the prefix, ignoring case
+     * @param prefix The start of the titles
+     * @param limit The most suggestions to return
+     * @return The suggestions, highest weight first
+     * @throws IllegalStateException If the dictionary turns out to be corrupt
+     */
+    public List<Suggestion> complete(String prefix, int limit){
+        return complete(prefix, limit, null);
+    }
+
+    @Override
+    public List<Suggestion> onQuerySuggestions(SuggestionQuery query) {
+        return complete(query.getTerm().trim(), query.getLimit(), query);
+    }
+
+    private List<Suggestion> complete(String prefix, int limit, SuggestionQuery query){
+        if(limit <= 0 || mSize == 0){
+            return new ArrayList<>();
+        }
+        try {
+            return search(prefix, limit, query);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException
+                | IllegalArgumentException e) {
+            //The checks when it was opened can miss a file that was changed after it was mapped
+            throw new IllegalStateException("Corrupt FrontCodedDictionary", e);
+        }
+    }
+
+    private List<Suggestion> search(String prefix, int limit, SuggestionQuery query){
+        char[] key = new char[prefix.length()];
+        for(int i = 0; i < key.length; i++){
+            key[i] = TextFolder.fold(prefix.charAt(i));
+        }
+
+        Cursor cursor = new Cursor(mBuffer.duplicate());
+        TopK<Suggestion> top = new TopK<>(limit, Suggestion.WEIGHT_ORDER);
+        int firstBlock = findBlock(cursor, key, false);
+        int lastBlock = findBlock(cursor, key, true);
+        boolean published = false;
+        for(int block = firstBlock; block <= lastBlock; block++){
+            if(query != null && block % CHECK_BLOCKS == 0){
+                query.getCancellationSignal().throwIfCanceled();
+                if(!published && top.size() > 0 && query.isPastDeadline()){
+                    published = true;
+                    if(!query.publishPartialResults(top.toList())){
+                        return top.toList();
+                    }
+                }
+            }
+            if(top.isFull() && getMaxWeight(block) <= top.worst().getWeight()){
+                //Nothing in this block can make it in, so it is not decoded
+                continue;
+            }
+            int count = Math.min(mBlockSize, mSize - block * mBlockSize);
+            cursor.seekBlock(block);
+            for(int i = 0; i < count; i++){
+                cursor.next(i == 0);
+                int result = cursor.compareTo(key);
+                if(result > 0){
+                    //Past the last title that starts with the prefix
+                    break;
+                }
+                if(result == 0 && (!top.isFull() || cursor.mWeight > top.worst().getWeight())){
+                    top.offer(new Suggestion(block * mBlockSize + i, cursor.getTitle(), cursor.mWeight)
+                            .setIcon(mIconResId));
+                }
+            }
+        }
+        return top.toList();
+    }
+
+    /**
+     * Binary searches for the first or last block that can hold titles starting with the key.
+     * Matches can start part way through the last block that starts before the key, and end
+     * part way through the last block that starts with it.
+     * @param last True to find the last block, false to find the first
+     */
+    private int findBlock(Cursor cursor, char[] key, boolean last){
+        int low = 0;
+        int high = mBlockCount - 1;
+        int result = 0;
+        while(low <= high){
+            int middle = (low + high) >>> 1;
+            cursor.seekBlock(middle);
+            cursor.next(true);
+            int compare = cursor.compareTo(key);
+            if(last ? compare <= 0 : compare < 0){
+                result = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return result;
+    }
+
+    private double getMaxWeight(int block){
+        return mBuffer.getDouble(HEADER_SIZE + block * BLOCK_ENTRY_SIZE + 4);
+    }
+
+    private static int sharedPrefix(byte[] previous, byte[] bytes){
+        int length = Math.min(previous.length, bytes.length);
+        int shared = 0;
+        while(shared < length && previous[shared] == bytes[shared]){
+            shared++;
+        }
+        return shared;
+    }
+
+    /**
+     * Decodes the titles of a block one after another, reusing its buffers
+     */
+    private class Cursor {
+        private final ByteBuffer mData;
+        private byte[] mBytes = new byte[64];
+        private int mLength;
+        private char[] mChars = new char[64];
+        private int mCharLength;
+        double mWeight;
+
+        Cursor(ByteBuffer data){
+            mData = data;
+        }
+
+        void seekBlock(int block){
+            mData.position(mData.getInt(HEADER_SIZE + block * BLOCK_ENTRY_SIZE));
+        }
+
+        void next(boolean first){
+            int shared = first ? 0 : readVarInt();
+            int suffix = readVarInt();
+            mLength = shared + suffix;
+            if(mLength > mBytes.length){
+                byte[] bytes = new byte[Math.max(mLength, mBytes.length * 2)];
+                System.arraycopy(mBytes, 0, bytes, 0, shared);
+                mBytes = bytes;
+            }
+            mData.get(mBytes, shared, suffix);
+            mWeight = mData.getDouble();
+            decode();
+        }
+
+        /**
+         * Compares the start of the title with the key, ignoring case
+         * @return Less than 0 if the title comes before the titles starting with the key,
+         * 0 if it starts with the key, and greater than 0 if it comes after them
+         */
+        int compareTo(char[] key){
+            int length = Math.min(mCharLength, key.length);
+            for(int i = 0; i < length; i++){
+                int result = TextFolder.fold(mChars[i]) - key[i];
+                if(result != 0){
+                    return result;
+                }
+            }
+            return mCharLength < key.length ? -1 : 0;
+        }
+
+        String getTitle(){
+            return new String(mChars, 0, mCharLength);
+        }
+
+        private int readVarInt(){
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = mData.get();
+                value |= (b & 0x7f) << shift;
+                shift += 7;
+            } while((b & 0x80) != 0);
+            return value;
+        }
+
+        /**
+         * Decodes the UTF-8 bytes into the char buffer, without creating a String
+         */
+        private void decode(){
+            if(mChars.length < mLength){
+                mChars = new char[Math.max(mLength, mChars.length * 2)];
+            }
+            int count = 0;
+            int i = 0;
+            while(i < mLength){
+                int b = mBytes[i++] & 0xff;
+                if(b < 0x80){
+                    mChars[count++] = (char) b;
+                } else if(b < 0xe0){
+                    mChars[count++] = (char) (((b & 0x1f) << 6) | (mBytes[i++] & 0x3f));
+                } else if(b < 0xf0){
+                    mChars[count++] = (char) (((b & 0x0f) << 12) | ((mBytes[i++] & 0x3f) << 6)
+                            | (mBytes[i++] & 0x3f));
+                } else {
+                    int codePoint = ((b & 0x07) << 18) | ((mBytes[i++] & 0x3f) << 12)
+                            | ((mBytes[i++] & 0x3f) << 6) | (mBytes[i++] & 0x3f);
+                    count += Character.toChars(codePoint, mChars, count);
+                }
+            }
+            mCharLength = count;
+        }
+    }
+
+    /**
+     * Collects the encoded blocks while the dictionary is built
+     */
+    private static class Output extends ByteArrayOutputStream {
+
+        Output(){
+            super(1024);
+        }
+
+        byte[] getBuffer(){
+            return buf;
+        }
+
+        void writeVarInt(int value){
+            while((value & ~0x7f) != 0){
+                write((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            write(value);
+        }
+
+        void writeDouble(double value){
+            //Doubles keep weights such as timestamps and counts exact, so their order never changes
+            long bits = Double.doubleToLongBits(value);
+            for(int shift = 56; shift >= 0; shift -= 8){
+                write((int) (bits >>> shift));
+            }
+        }
+    }
+}
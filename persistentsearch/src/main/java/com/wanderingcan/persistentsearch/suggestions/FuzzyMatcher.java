@@ -0,0 +1,103 @@
+/*
+ * Copyright 2015 Christopher Beda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wanderingcan.persistentsearch.suggestions;
+
+import com.wanderingcan.persistentsearch.Suggestion;
+import com.wanderingcan.persistentsearch.SuggestionProvider;
+import com.wanderingcan.persistentsearch.SuggestionQuery;
+
+import java.util.List;
+
+/**
+ * A SuggestionProvider that finds the Suggestions in a {@link PrefixTrie} that start with the
+ * search term, allowing for typos.
+ * <p>
+ * Short search terms allow fewer typos, so that a couple of letters do not match everything:
+ * terms under 3 letters must match exactly, terms under 6 letters allow one typo, and longer
+ * terms allow up to the max edit distance. Exact matches are always shown first.
+ * </p>
+ */
+public class FuzzyMatcher implements SuggestionProvider {
+
+    private static final int DEFAULT_MAX_EDIT_DISTANCE = 2;
+
+    private final PrefixTrie mTrie;
+    private int mMaxEditDistance;
+
+    /**
+     * Constructor for FuzzyMatcher that allows up to 2 typos
+     * @param trie The trie holding the Suggestions
+     */
+    public FuzzyMatcher(PrefixTrie trie){
+        this(trie, DEFAULT_MAX_EDIT_DISTANCE);
+    }
+
+    /**
+     * Constructor for FuzzyMatcher
+     * @param trie The trie holding the Suggestions
+     * @param maxEditDistance The most typos allowed
+     */
+    public FuzzyMatcher(PrefixTrie trie, int maxEditDistance){
+        mTrie = trie;
+        setMaxEditDistance(maxEditDistance);
+    }
+
+    /**
+     * Sets the most typos allowed in the search term, each inserted, removed, changed or swapped
+     * letter counts as one
+     * @param maxEditDistance The most typos allowed, between 0 and 2
+     */
+    public void setMaxEditDistance(int maxEditDistance){
+        if(maxEditDistance < 0 || maxEditDistance > 2){
+            throw new IllegalArgumentException("maxEditDistance must be between 0 and 2");
+        }
+        mMaxEditDistance = maxEditDistance;
+    }
+
+    /**
+     * Gets the most typos allowed in the search term
+     * @return The max edit distance
+     */
+    public int getMaxEditDistance(){
+        return mMaxEditDistance;
+    }
+
+    /**
+     * Finds the Suggestions that start with the prefix, allowing for typos
+     * @param prefix The prefix to complete, ignoring case
+     * @param limit The most Suggestions to return
+     * @return The Suggestions, closest match first then highest weight
+     */
+    public List<Suggestion> match(String prefix, int limit){
+        return mTrie.completeFuzzy(prefix, maxDistanceFor(prefix.length()), limit);
+    }
+
+    @Override
+    public List<Suggestion> onQuerySuggestions(SuggestionQuery query) {
+        return match(query.getTerm(), query.getLimit());
+    }
+
+    private int maxDistanceFor(int length){
+        if(length < 3){
+            return 0;
+        }
+        if(length < 6){
+            return Math.min(1, mMaxEditDistance);
+        }
+        return mMaxEditDistance;
+    }
+}
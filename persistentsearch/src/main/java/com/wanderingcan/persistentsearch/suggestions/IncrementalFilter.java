@@ -0,0 +1,159 @@
+/*
+ * Copyright 2015 Christopher Beda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wanderingcan.persistentsearch.suggestions;
+
+import com.wanderingcan.persistentsearch.Suggestion;
+import com.wanderingcan.persistentsearch.SuggestionProvider;
+import com.wanderingcan.persistentsearch.SuggestionQuery;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A SuggestionProvider that filters a list of Suggestions by whether their titles start with or
+ * contain the search term, ignoring case and accents.
+ * <p>
+ * While the user keeps typing at the end of the search term, the Suggestions that matched the
+ * last term are the only ones that can match the new one, so only those are checked again. The
+ * whole list is only searched when the term is edited in some other way, such as deleting or
+ * changing letters.
+ * </p>
+ */
+public class IncrementalFilter implements SuggestionProvider {
+
+    /**
+     * Titles match if they start with the search term
+     */
+    public static final int MATCH_PREFIX = 0;
+
+    /**
+     * Titles match if they contain the search term anywhere
+     */
+    public static final int MATCH_SUBSTRING = 1;
+
+    //How many Suggestions are checked between checks for a canceled query or a passed deadline
+    private static final int DEADLINE_CHECK_ITEMS = 1024;
+
+    private final int mMatchMode;
+
+    private Suggestion[] mSuggestions = new Suggestion[0];
+    //The folded titles, made once so filtering does not allocate
+    private char[][] mKeys = new char[0][];
+
+    //The folded search term, and the last one, reused for every search
+    private TextFolder.Buffer mTerm = new TextFolder.Buffer();
+    private TextFolder.Buffer mLastTerm = new TextFolder.Buffer();
+    private boolean mHasLastTerm;
+    private int[] mCandidates = new int[0];
+    private int mCandidateCount;
+
+    /**
+     * Constructor for IncrementalFilter that matches the start of the titles
+     */
+    public IncrementalFilter(){
+        this(MATCH_PREFIX);
+    }
+
+    /**
+     * Constructor for IncrementalFilter
+     * @param matchMode Either {@link #MATCH_PREFIX} or {@link #MATCH_SUBSTRING}
+     */
+    public IncrementalFilter(int matchMode){
+        if(matchMode != MATCH_PREFIX && matchMode != MATCH_SUBSTRING){
+            throw new IllegalArgumentException("Unknown match mode " + matchMode);
+        }
+        mMatchMode = matchMode;
+    }
+
+    /**
+     * Sets the Suggestions to filter, replacing the ones set before
+     * @param suggestions The Suggestions to filter
+     */
+    public synchronized void setSuggestions(Collection<Suggestion> suggestions){
+        mSuggestions = suggestions.toArray(new Suggestion[suggestions.size()]);
+        mKeys = new char[mSuggestions.length][];
+        for(int i = 0; i < mSuggestions.length; i++){
+            String title = mSuggestions[i].getTitle();
+            mKeys[i] = TextFolder.foldToArray(title == null ? "" : title);
+        }
+        mCandidates = new int[mSuggestions.length];
+        mHasLastTerm = false;
+    }
+
+    /**
+     * Finds the Suggestions with the highest weight that match the term
+     * @param term The search term
+     * @param limit The most Suggestions to return
+     * @return The Suggestions, highest weight first
+     */
+    public List<Suggestion> filter(String term, int limit){
+        return filter(term, limit, null);
+    }
+
+    @Override
+    public List<Suggestion> onQuerySuggestions(SuggestionQuery query) {
+        return filter(query.getTerm(), query.getLimit(), query);
+    }
+
+    private synchronized List<Suggestion> filter(String term, int limit, SuggestionQuery query){
+        TextFolder.Buffer key = mTerm.set(term == null ? "" : term);
+        //Only the Suggestions that matched the last term can match a term that extends it
+        boolean narrow = mHasLastTerm && matches(key.chars(), key.length(), mLastTerm);
+        int total = narrow ? mCandidateCount : mKeys.length;
+        mTerm = mLastTerm;
+        mLastTerm = key;
+        mHasLastTerm = true;
+
+        TopK<Suggestion> top = new TopK<>(limit, Suggestion.WEIGHT_ORDER);
+        boolean published = false;
+        int count = 0;
+        for(int i = 0; i < total; i++){
+            int candidate = narrow ? mCandidates[i] : i;
+            char[] title = mKeys[candidate];
+            if(matches(title, title.length, key)){
+                mCandidates[count++] = candidate;
+                top.offer(mSuggestions[candidate]);
+            }
+            if(query == null || i % DEADLINE_CHECK_ITEMS != 0){
+                continue;
+            }
+            if(query.isCanceled()){
+                //The candidates are only partly written, so the next term can not be narrowed
+                //from them
+                mHasLastTerm = false;
+                query.getCancellationSignal().throwIfCanceled();
+            }
+            if(!published && top.size() > 0 && query.isPastDeadline()){
+                published = true;
+                if(!query.publishPartialResults(top.toList())){
+                    //The candidates are not complete, so the next term can not be narrowed from them
+                    mHasLastTerm = false;
+                    return top.toList();
+                }
+            }
+        }
+        mCandidateCount = count;
+        return top.toList();
+    }
+
+    private boolean matches(char[] text, int length, TextFolder.Buffer key){
+        if(mMatchMode == MATCH_PREFIX){
+            return TextFolder.startsWith(text, length, key.chars(), key.length());
+        }
+        return TextFolder.contains(text, length, key.chars(), key.length());
+    }
+}
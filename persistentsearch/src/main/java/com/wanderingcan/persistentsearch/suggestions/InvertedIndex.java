@@ -0,0 +1,474 @@
+/*
+ * Copyright 2015 Christopher Beda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wanderingcan.persistentsearch.suggestions;
+
+import com.wanderingcan.persistentsearch.Suggestion;
+import com.wanderingcan.persistentsearch.SuggestionProvider;
+import com.wanderingcan.persistentsearch.SuggestionQuery;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * An inverted index of Suggestions that matches every word of the search term against the
+ * words of the titles, in any order, so "york new" finds "New York".
+ * <p>
+ * Titles are split into words of letters and digits, ignoring case and accents. The last word
+ * of the search term is matched as the start of a word while it is still being typed. Each word keeps the
+ * Suggestions it is in as a list of ids, stored as the varint encoded gaps between them.
+ * Suggestions are given ids from the highest weight to the lowest, so intersecting the lists
+ * finds the matches best first, and stops as soon as there are enough of them.
+ * </p>
+ * The index is rebuilt when the Suggestions are set, and can be searched from many threads at
+ * once.
+ */
+public class InvertedIndex implements SuggestionProvider {
+
+    private static final int NO_MORE_DOCS = Integer.MAX_VALUE;
+    //How many steps of an intersection are done between checks for a canceled query or a
+    //passed deadline
+    private static final int CHECK_STEPS = 1024;
+    //Past this many words, a prefix is checked against the titles instead of merging their lists
+    private static final int MAX_UNION_WORDS = 32;
+
+    private static final Index EMPTY = new Index(new Suggestion[0], new String[0], new int[1], new byte[0]);
+
+    private volatile Index mIndex = EMPTY;
+
+    /**
+     * Constructor for an empty InvertedIndex
+     */
+    public InvertedIndex(){
+        //Empty Constructor
+    }
+
+    /**
+     * Constructor for InvertedIndex
+     * @param suggestions The Suggestions to index
+     */
+    public InvertedIndex(Collection<Suggestion> suggestions){
+        setSuggestions(suggestions);
+    }
+
+    /**
+     * Sets the Suggestions to search, replacing the ones that were set before
+     * @param suggestions The Suggestions to index
+     */
+    public void setSuggestions(Collection<Suggestion> suggestions){
+        mIndex = Index.build(suggestions);
+    }
+
+    /**
+     * Gets the number of Suggestions in the index
+     * @return The number of Suggestions
+     */
+    public int size(){
+        return mIndex.mSuggestions.length;
+    }
+
+    /**
+     * Finds the highest weighted Suggestions whose titles have all the words of the term
+     * @param term The search term, the last word can be the start of a word
+     * @param limit The most Suggestions to return
+     * @return The Suggestions, highest weight first
+     */
+    public List<Suggestion> search(String term, int limit){
+        return search(term, limit, null);
+    }
+
+    @Override
+    public List<Suggestion> onQuerySuggestions(SuggestionQuery query) {
+        return search(query.getTerm(), query.getLimit(), query);
+    }
+
+    private List<Suggestion> search(String term, int limit, SuggestionQuery query){
+        Index index = mIndex;
+        ArrayList<Suggestion> results = new ArrayList<>();
+        List<String> words = tokenize(term);
+        if(words.isEmpty()){
+            int count = Math.min(limit, index.mSuggestions.length);
+            results.addAll(Arrays.asList(index.mSuggestions).subList(0, count));
+            return results;
+        }
+
+        //A search term that ends with a space has finished its last word
+        String prefix = isSeparator(term.charAt(term.length() - 1)) ? null : words.remove(words.size() - 1);
+        ArrayList<DocIterator> iterators = new ArrayList<>(words.size() + 1);
+        for(String word : words){
+            DocIterator iterator = index.wordIterator(word);
+            if(iterator == null){
+                return results;
+            }
+            iterators.add(iterator);
+        }
+        if(prefix != null){
+            int start = index.findFirstWord(prefix);
+            int end = index.findFirstWord(prefix + Character.MAX_VALUE);
+            if(start == end){
+                return results;
+            }
+            if(iterators.isEmpty() || end - start <= MAX_UNION_WORDS){
+                iterators.add(index.unionIterator(start, end));
+                prefix = null;
+            }
+        }
+        //Leading with the shortest list skips the most
+        Collections.sort(iterators, DocIterator.COST_ORDER);
+
+        int target = 0;
+        int steps = 0;
+        boolean published = false;
+        while(results.size() < limit){
+            if(query != null && ++steps % CHECK_STEPS == 0){
+                query.getCancellationSignal().throwIfCanceled();
+                if(!published && !results.isEmpty() && query.isPastDeadline()){
+                    published = true;
+                    //The matches so far are already the best ones, the rest can only follow them
+                    if(!query.publishPartialResults(results)){
+                        return results;
+                    }
+                }
+            }
+            int doc = target;
+            boolean match = true;
+            for(DocIterator iterator : iterators){
+                int next = iterator.advance(doc);
+                if(next == NO_MORE_DOCS){
+                    return results;
+                }
+                if(next != doc){
+                    doc = next;
+                    match = false;
+                    break;
+                }
+            }
+            if(match){
+                //Ids are in weight order, so every match is better than the ones after it
+                if(prefix == null || hasWordStartingWith(index.mSuggestions[doc].getTitle(), prefix)){
+                    results.add(index.mSuggestions[doc]);
+                }
+                target = doc + 1;
+            } else {
+                target = doc;
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Splits the text into lower case words of letters and digits
+     */
+    private static List<String> tokenize(String text){
+        ArrayList<String> words = new ArrayList<>();
+        StringBuilder word = new StringBuilder();
+        for(int i = 0; i < text.length(); i++){
+            char c = text.charAt(i);
+            if(isSeparator(c)){
+                if(word.length() > 0){
+                    words.add(word.toString());
+                    word.setLength(0);
+                }
+            } else {
+                word.append(TextFolder.fold(c));
+            }
+        }
+        if(word.length() > 0){
+            words.add(word.toString());
+        }
+        return words;
+    }
+
+    /**
+     * Checks the words of the title in place, the same way {@link #tokenize(String)} splits them,
+     * so matching a candidate does not allocate
+     */
+    private static boolean hasWordStartingWith(String title, String prefix){
+        int length = title.length();
+        int prefixLength = prefix.length();
+        boolean wordStart = true;
+        for(int i = 0; i < length; i++){
+            char c = title.charAt(i);
+            if(isSeparator(c)){
+                wordStart = true;
+                continue;
+            }
+            if(wordStart && startsWithAt(title, i, prefix, prefixLength)){
+                return true;
+            }
+            wordStart = false;
+        }
+        return false;
+    }
+
+    private static boolean startsWithAt(String title, int start, String prefix, int prefixLength){
+        if(title.length() - start < prefixLength){
+            return false;
+        }
+        for(int j = 0; j < prefixLength; j++){
+            char c = title.charAt(start + j);
+            if(isSeparator(c) || TextFolder.fold(c) != prefix.charAt(j)){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isSeparator(char c){
+        return !Character.isLetterOrDigit(c);
+    }
+
+    /**
+     * The built index, which is never changed so searches do not need to lock
+     */
+    private static class Index {
+        //The Suggestions by id, highest weight first
+        final Suggestion[] mSuggestions;
+        //The words of all the titles, sorted
+        final String[] mWords;
+        //Where the ids of each word start in mPostings, with the end of the last word at the end
+        final int[] mOffsets;
+        final byte[] mPostings;
+
+        Index(Suggestion[] suggestions, String[] words, int[] offsets, byte[] postings){
+            mSuggestions = suggestions;
+            mWords = words;
+            mOffsets = offsets;
+            mPostings = postings;
+        }
+
+        static Index build(Collection<Suggestion> suggestions){
+            Suggestion[] sorted = suggestions.toArray(new Suggestion[suggestions.size()]);
+            Arrays.sort(sorted, Suggestion.WEIGHT_ORDER);
+
+            HashMap<String, IdList> lists = new HashMap<>();
+            for(int id = 0; id < sorted.length; id++){
+                String title = sorted[id].getTitle();
+                if(title == null){
+                    continue;
+                }
+                for(String word : tokenize(title)){
+                    IdList list = lists.get(word);
+                    if(list == null){
+                        list = new IdList();
+                        lists.put(word, list);
+                    }
+                    list.add(id);
+                }
+            }
+
+            String[] words = lists.keySet().toArray(new String[lists.size()]);
+            Arrays.sort(words);
+            int[] offsets = new int[words.length + 1];
+            PostingsOutput postings = new PostingsOutput();
+            for(int i = 0; i < words.length; i++){
+                offsets[i] = postings.size();
+                lists.get(words[i]).writeTo(postings);
+            }
+            offsets[words.length] = postings.size();
+            return new Index(sorted, words, offsets, postings.toByteArray());
+        }
+
+        /**
+         * Gets the ids of the Suggestions with the word
+         * @return The ids, or null if no title has the word
+         */
+        DocIterator wordIterator(String word){
+            int index = Arrays.binarySearch(mWords, word);
+            return index < 0 ? null : postingIterator(index);
+        }
+
+        /**
+         * Binary searches for the first word that is not before the key
+         * @return The index of the word, or the number of words if all of them are before the key
+         */
+        int findFirstWord(String key){
+            int index = Arrays.binarySearch(mWords, key);
+            return index < 0 ? -index - 1 : index;
+        }
+
+        /**
+         * Gets the ids of the Suggestions with any of the words in the range
+         */
+        DocIterator unionIterator(int start, int end){
+            if(end - start == 1){
+                return postingIterator(start);
+            }
+            ArrayList<PostingIterator> iterators = new ArrayList<>(end - start);
+            for(int i = start; i < end; i++){
+                iterators.add(postingIterator(i));
+            }
+            return new UnionIterator(iterators);
+        }
+
+        private PostingIterator postingIterator(int word){
+            return new PostingIterator(mPostings, mOffsets[word], mOffsets[word + 1]);
+        }
+    }
+
+    /**
+     * Steps through a list of ids in order
+     */
+    private abstract static class DocIterator {
+
+        static final Comparator<DocIterator> COST_ORDER = new Comparator<DocIterator>() {
+            @Override
+            public int compare(DocIterator lhs, DocIterator rhs) {
+                return lhs.cost() - rhs.cost();
+            }
+        };
+
+        int mDoc = -1;
+
+        /**
+         * Moves to the first id that is at least the target
+         * @return The id, or NO_MORE_DOCS if the list has ended
+         */
+        abstract int advance(int target);
+
+        /**
+         * Gets how long the list is, used to pick the order lists are intersected in
+         */
+        abstract int cost();
+    }
+
+    private static class PostingIterator extends DocIterator {
+        private final byte[] mData;
+        private final int mEnd;
+        private int mPosition;
+
+        PostingIterator(byte[] data, int start, int end){
+            mData = data;
+            mPosition = start;
+            mEnd = end;
+        }
+
+        @Override
+        int advance(int target) {
+            while(mDoc < target){
+                if(mPosition >= mEnd){
+                    mDoc = NO_MORE_DOCS;
+                    break;
+                }
+                int gap = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = mData[mPosition++];
+                    gap |= (b & 0x7f) << shift;
+                    shift += 7;
+                } while((b & 0x80) != 0);
+                //The first id is stored as a gap from -1
+                mDoc += gap;
+            }
+            return mDoc;
+        }
+
+        @Override
+        int cost() {
+            return mEnd - mPosition;
+        }
+    }
+
+    /**
+     * Merges the lists of every word that starts with a prefix
+     */
+    private static class UnionIterator extends DocIterator {
+
+        private static final Comparator<DocIterator> DOC_ORDER = new Comparator<DocIterator>() {
+            @Override
+            public int compare(DocIterator lhs, DocIterator rhs) {
+                return lhs.mDoc < rhs.mDoc ? -1 : (lhs.mDoc == rhs.mDoc ? 0 : 1);
+            }
+        };
+
+        private final PriorityQueue<PostingIterator> mQueue;
+        private final int mCost;
+
+        UnionIterator(List<PostingIterator> iterators){
+            mQueue = new PriorityQueue<>(iterators.size(), DOC_ORDER);
+            int cost = 0;
+            for(PostingIterator iterator : iterators){
+                cost += iterator.cost();
+                mQueue.add(iterator);
+            }
+            mCost = cost;
+        }
+
+        @Override
+        int advance(int target) {
+            PostingIterator head;
+            while((head = mQueue.peek()) != null && head.mDoc < target){
+                mQueue.poll();
+                if(head.advance(target) != NO_MORE_DOCS){
+                    mQueue.add(head);
+                }
+            }
+            mDoc = head == null ? NO_MORE_DOCS : head.mDoc;
+            return mDoc;
+        }
+
+        @Override
+        int cost() {
+            return mCost;
+        }
+    }
+
+    /**
+     * The ids of the Suggestions with a word, while the index is built
+     */
+    private static class IdList {
+        private int[] mIds = new int[4];
+        private int mSize;
+
+        void add(int id){
+            if(mSize > 0 && mIds[mSize - 1] == id){
+                //The word is in the title more than once
+                return;
+            }
+            if(mSize == mIds.length){
+                mIds = Arrays.copyOf(mIds, mSize * 2);
+            }
+            mIds[mSize++] = id;
+        }
+
+        void writeTo(PostingsOutput out){
+            int previous = -1;
+            for(int i = 0; i < mSize; i++){
+                out.writeVarInt(mIds[i] - previous);
+                previous = mIds[i];
+            }
+        }
+    }
+
+    private static class PostingsOutput extends ByteArrayOutputStream {
+
+        void writeVarInt(int value){
+            while((value & ~0x7f) != 0){
+                write((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            write(value);
+        }
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright 2015 Christopher Beda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wanderingcan.persistentsearch.suggestions;
+
+import com.wanderingcan.persistentsearch.Suggestion;
+import com.wanderingcan.persistentsearch.SuggestionProvider;
+import com.wanderingcan.persistentsearch.SuggestionQuery;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * An in memory prefix trie of Suggestions that finds the top weighted completions for a prefix.
+ * <p>
+ * Each node keeps the highest weight found under it, so the best completions are found by
+ * walking the trie best first, without visiting every completion of the prefix. Titles are
+ * matched ignoring case and accents. It can be set on a PersistentSearchView as its
+ * SuggestionProvider.
+ * </p>
+ */
+public class PrefixTrie implements SuggestionProvider {
+
+    private static final char[] NO_KEYS = new char[0];
+    private static final Node[] NO_NODES = new Node[0];
+    private static final Suggestion[] NO_ENTRIES = new Suggestion[0];
+
+    private final Node mRoot = new Node();
+    private int mSize;
+
+    /**
+     * Adds a Suggestion to the trie, keyed by its title
+     * @param suggestion The Suggestion to add
+     */
+    public synchronized void add(Suggestion suggestion){
+        String title = suggestion.getTitle() == null ? "" : suggestion.getTitle();
+        Node node = mRoot;
+        node.offerWeight(suggestion.getWeight());
+        for(int i = 0; i < title.length(); i++){
+            node = node.getOrAddChild(TextFolder.fold(title.charAt(i)));
+            node.offerWeight(suggestion.getWeight());
+        }
+        node.addEntry(suggestion);
+        mSize++;
+    }
+
+    /**
+     * Adds all the Suggestions to the trie
+     * @param suggestions The Suggestions to add
+     */
+    public synchronized void addAll(Collection<Suggestion> suggestions){
+        for(Suggestion suggestion : suggestions){
+            add(suggestion);
+        }
+    }
+
+    /**
+     * Removes all the Suggestions from the trie
+     */
+    public synchronized void clear(){
+        mRoot.clear();
+        mSize = 0;
+    }
+
+    /**
+     * Gets the number of Suggestions in the trie
+     * @return The number of Suggestions
+     */
+    public synchronized int size(){
+        return mSize;
+    }
+
+    /**
+     * Finds the Suggestions with the highest weight whose titles start with the prefix
+     * @param prefix The prefix to complete, ignoring case
+     * @param limit The most Suggestions to return
+     * @return The Suggestions, highest weight first
+     */
+    public synchronized List<Suggestion> complete(String prefix, int limit){
+        Node node = mRoot;
+        for(int i = 0; i < prefix.length() && node != null; i++){
+            node = node.getChild(TextFolder.fold(prefix.charAt(i)));
+        }
+        if(node == null || limit <= 0){
+            return Collections.emptyList();
+        }
+
+        ArrayList<Suggestion> results = new ArrayList<>(Math.min(limit, mSize));
+        PriorityQueue<Candidate> queue = new PriorityQueue<>();
+        queue.add(new Candidate(node, null, node.mMaxWeight));
+        Candidate candidate;
+        while(results.size() < limit && (candidate = queue.poll()) != null){
+            if(candidate.mSuggestion != null){
+                results.add(candidate.mSuggestion);
+                continue;
+            }
+            Node current = candidate.mNode;
+            for(int i = 0; i < current.mEntryCount; i++){
+                Suggestion entry = current.mEntries[i];
+                queue.add(new Candidate(null, entry, entry.getWeight()));
+            }
+            for(int i = 0; i < current.mChildCount; i++){
+                Node child = current.mChildren[i];
+                queue.add(new Candidate(child, null, child.mMaxWeight));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Finds the Suggestions whose titles start with a prefix that is within the edit distance of
+     * the given prefix. Closer matches come first, then the higher weight.
+     * <p>
+     * The trie is walked with a row of the edit distance table for each depth, like a
+     * Levenshtein automaton, and branches that can no longer be within the distance are skipped.
+     * Insertions, deletions, substitutions and swapping two letters next to each other each count
+     * as one edit.
+     * </p>
+     * @param prefix The prefix to complete, ignoring case
+     * @param maxDistance The most edits allowed
+     * @param limit The most Suggestions to return
+     * @return The Suggestions, closest match first
+     */
+    synchronized List<Suggestion> completeFuzzy(String prefix, int maxDistance, int limit){
+        String key = TextFolder.fold(prefix);
+        if(maxDistance <= 0){
+            return complete(key, limit);
+        }
+        if(limit <= 0){
+            return Collections.emptyList();
+        }
+
+        int length = key.length();
+        FuzzySearch search = new FuzzySearch(key, maxDistance);
+        int[] row = search.mRows[0];
+        for(int i = 0; i <= length; i++){
+            row[i] = i;
+        }
+        search.visit(mRoot, 0, (char) 0, Integer.MAX_VALUE);
+
+        //Take the matches one distance at a time, so a Suggestion is taken at its closest distance
+        ArrayList<Suggestion> results = new ArrayList<>(Math.min(limit, mSize));
+        IdentityHashMap<Suggestion, Boolean> taken = new IdentityHashMap<>();
+        for(int distance = 0; distance <= maxDistance && results.size() < limit; distance++){
+            ArrayList<Node> roots = search.mMatches.get(distance);
+            if(roots.isEmpty()){
+                continue;
+            }
+            PriorityQueue<Candidate> queue = new PriorityQueue<>();
+            for(Node node : roots){
+                queue.add(new Candidate(node, null, node.mMaxWeight));
+            }
+            Candidate candidate;
+            while(results.size() < limit && (candidate = queue.poll()) != null){
+                if(candidate.mSuggestion != null){
+                    if(taken.put(candidate.mSuggestion, Boolean.TRUE) == null) {
+                        results.add(candidate.mSuggestion);
+                    }
+                    continue;
+                }
+                Node current = candidate.mNode;
+                for(int i = 0; i < current.mEntryCount; i++){
+                    Suggestion entry = current.mEntries[i];
+                    queue.add(new Candidate(null, entry, entry.getWeight()));
+                }
+                for(int i = 0; i < current.mChildCount; i++){
+                    Node child = current.mChildren[i];
+                    queue.add(new Candidate(child, null, child.mMaxWeight));
+                }
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public List<Suggestion> onQuerySuggestions(SuggestionQuery query) {
+        return complete(query.getTerm(), query.getLimit());
+    }
+
+    /**
+     * A node of the trie, its children are kept in arrays sorted by their character to keep
+     * the trie small
+     */
+    private static class Node {
+        char[] mKeys = NO_KEYS;
+        Node[] mChildren = NO_NODES;
+        int mChildCount;
+
+        Suggestion[] mEntries = NO_ENTRIES;
+        int mEntryCount;
+
+        double mMaxWeight = Double.NEGATIVE_INFINITY;
+
+        Node getChild(char c){
+            int index = Arrays.binarySearch(mKeys, 0, mChildCount, c);
+            return index >= 0 ? mChildren[index] : null;
+        }
+
+        Node getOrAddChild(char c){
+            int index = Arrays.binarySearch(mKeys, 0, mChildCount, c);
+            if(index >= 0){
+                return mChildren[index];
+            }
+            index = -(index + 1);
+            if(mChildCount == mKeys.length){
+                int capacity = Math.max(2, mChildCount * 2);
+                mKeys = Arrays.copyOf(mKeys, capacity);
+                mChildren = Arrays.copyOf(mChildren, capacity);
+            }
+            System.arraycopy(mKeys, index, mKeys, index + 1, mChildCount - index);
+            System.arraycopy(mChildren, index, mChildren, index + 1, mChildCount - index);
+            Node child = new Node();
+            mKeys[index] = c;
+            mChildren[index] = child;
+            mChildCount++;
+            return child;
+        }
+
+        void addEntry(Suggestion suggestion){
+            if(mEntryCount == mEntries.length){
+                mEntries = Arrays.copyOf(mEntries, Math.max(1, mEntryCount * 2));
+            }
+            mEntries[mEntryCount++] = suggestion;
+        }
+
+        void offerWeight(double weight){
+            if(weight > mMaxWeight){
+                mMaxWeight = weight;
+            }
+        }
+
+        void clear(){
+            mKeys = NO_KEYS;
+            mChildren = NO_NODES;
+            mChildCount = 0;
+            mEntries = NO_ENTRIES;
+            mEntryCount = 0;
+            mMaxWeight = Double.NEGATIVE_INFINITY;
+        }
+    }
+
+    /**
+     * Walks the trie keeping a row of the edit distance table for each depth, and records the
+     * nodes whose whole subtree is within the edit distance of the prefix
+     */
+    private static class FuzzySearch {
+        final String mKey;
+        final int mMaxDistance;
+        final int[][] mRows;
+        final ArrayList<ArrayList<Node>> mMatches;
+
+        FuzzySearch(String key, int maxDistance){
+            mKey = key;
+            mMaxDistance = maxDistance;
+            int depth = key.length() + maxDistance + 1;
+            mRows = new int[depth + 1][key.length() + 1];
+            mMatches = new ArrayList<>(maxDistance + 1);
+            for(int i = 0; i <= maxDistance; i++){
+                mMatches.add(new ArrayList<Node>());
+            }
+        }
+
+        /**
+         * @param node The node to visit, its row is mRows[depth]
+         * @param depth The depth of the node
+         * @param c The character leading to the node
+         * @param best The closest distance of a match on the path to the node
+         */
+        void visit(Node node, int depth, char c, int best){
+            int length = mKey.length();
+            int[] row = mRows[depth];
+            int distance = row[length];
+            if(distance <= mMaxDistance && distance < best){
+                //Closer than any match above it, so its completions can be closer too
+                best = distance;
+                mMatches.get(distance).add(node);
+            }
+
+            int rowMin = Integer.MAX_VALUE;
+            for(int value : row){
+                rowMin = Math.min(rowMin, value);
+            }
+            if(rowMin > mMaxDistance || rowMin >= best || depth + 1 >= mRows.length){
+                //No child can get any closer
+                return;
+            }
+
+            int[] next = mRows[depth + 1];
+            int[] before = depth > 0 ? mRows[depth - 1] : null;
+            for(int i = 0; i < node.mChildCount; i++){
+                char childChar = node.mKeys[i];
+                next[0] = row[0] + 1;
+                for(int j = 1; j <= length; j++){
+                    char keyChar = mKey.charAt(j - 1);
+                    int cost = keyChar == childChar ? 0 : 1;
+                    int value = Math.min(Math.min(next[j - 1] + 1, row[j] + 1), row[j - 1] + cost);
+                    if(before != null && j > 1 && keyChar == c && mKey.charAt(j - 2) == childChar){
+                        value = Math.min(value, before[j - 2] + 1);
+                    }
+                    next[j] = value;
+                }
+                visit(node.mChildren[i], depth + 1, childChar, best);
+            }
+        }
+    }
+
+    /**
+     * A node or a Suggestion waiting to be visited, ordered by the best weight it can lead to
+     */
+    private static class Candidate implements Comparable<Candidate> {
+        final Node mNode;
+        final Suggestion mSuggestion;
+        final double mWeight;
+
+        Candidate(Node node, Suggestion suggestion, double weight){
+            mNode = node;
+            mSuggestion = suggestion;
+            mWeight = weight;
+        }
+
+        @Override
+        public int compareTo(Candidate another) {
+            int result = Double.compare(another.mWeight, mWeight);
+            if(result == 0){
+                //Visit Suggestions before nodes with the same weight, so they are returned sooner
+                result = (mSuggestion != null ? 0 : 1) - (another.mSuggestion != null ? 0 : 1);
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,482 @@
+/*
+ * Copyright 2015 Christopher Beda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wanderingcan.persistentsearch.suggestions;
+
+import android.support.annotation.DrawableRes;
+import android.util.Log;
+
+import com.wanderingcan.persistentsearch.SearchExecutors;
+import com.wanderingcan.persistentsearch.SearchRecorder;
+import com.wanderingcan.persistentsearch.Suggestion;
+import com.wanderingcan.persistentsearch.SuggestionProvider;
+import com.wanderingcan.persistentsearch.SuggestionQuery;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+/**
+ * Keeps the searches the user has made in a file, and suggests the most recent ones that start
+ * with the search term. With no search term, the most recent searches are suggested. The weight
+ * of a search is how recent it is, from 1 for now halving every {@link #RECENCY_HALF_LIFE}, so
+ * it can be ordered with the suggestions of other providers.
+ * <p>
+ * The file is an append only log that is memory mapped, so recording a search only writes a
+ * record into the mapped memory. When the log is full it is compacted, keeping one record per
+ * search. All changes to the history, and all reading and writing of the file, happen in order
+ * on a background thread. The history is loaded as soon as the SearchHistory is created.
+ * </p>
+ * <p>
+ * Only one SearchHistory can have a file open at a time, so keep one for the app, or
+ * {@link #close()} it when it is done with, such as when the Activity is destroyed.
+ * </p>
+ * Add it to a PersistentSearchView with
+ * {@link com.wanderingcan.persistentsearch.PersistentSearchView#addSearchRecorder(SearchRecorder)}
+ * to record the searches the user makes.
+ */
+public class SearchHistory implements SuggestionProvider, SearchRecorder {
+
+    private static final String TAG = "SearchHistory";
+
+    /**
+     * The time for the weight of a search to halve, one week
+     */
+    public static final long RECENCY_HALF_LIFE = 7L * 24 * 60 * 60 * 1000;
+
+    private static final int MAGIC = 0x50534831; //PSH1
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+
+    private static final byte TYPE_SEARCH = 1;
+    private static final byte TYPE_REMOVE = 2;
+    private static final byte TYPE_CLEAR = 3;
+
+    //type, time and count
+    private static final int RECORD_FIELDS_SIZE = 1 + 8 + 4;
+    private static final int MIN_CAPACITY = 16 * 1024;
+    private static final int BYTES_PER_ENTRY = 256;
+    private static final int DEFAULT_MAX_ENTRIES = 100;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    //The paths of the files that a SearchHistory has open
+    private static final HashSet<String> sOpenFiles = new HashSet<>();
+
+    private final File mFile;
+    private final int mMaxEntries;
+    private final int mCapacity;
+    private final Executor mExecutor;
+    private final CountDownLatch mLoaded = new CountDownLatch(1);
+    private volatile boolean mClosed;
+
+    /**
+     * The searches, from the oldest to the most recent, keyed by their lower case term
+     */
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>();
+
+    private MappedByteBuffer mBuffer;
+    private int mIconResId;
+
+    /**
+     * Constructor for SearchHistory that keeps the 100 most recent searches
+     * @param file The file to keep the history in
+     */
+    public SearchHistory(File file){
+        this(file, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Constructor for SearchHistory
+     * @param file The file to keep the history in
+     * @param maxEntries The most searches to keep
+     * @throws IllegalStateException If another SearchHistory has the file open
+     */
+    public SearchHistory(File file, int maxEntries){
+        synchronized (sOpenFiles) {
+            //Two logs appending to the same file would write over each other's records
+            if(!sOpenFiles.add(file.getAbsolutePath())){
+                throw new IllegalStateException("Another SearchHistory has " + file + " open, "
+                        + "close() it first");
+            }
+        }
+        mFile = file;
+        mMaxEntries = maxEntries;
+        mCapacity = Math.max(MIN_CAPACITY, maxEntries * BYTES_PER_ENTRY);
+        mExecutor = SearchExecutors.newSerialExecutor();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    load();
+                } finally {
+                    mLoaded.countDown();
+                }
+            }
+        });
+    }
+
+    /**
+     * Sets the ResourceId for the icon shown next to the searches in the SearchMenu
+     * @param iconResId The resourceId for the icon, 0 for no icon
+     */
+    public void setIcon(@DrawableRes int iconResId){
+        mIconResId = iconResId;
+    }
+
+    /**
+     * Closes the file once the changes that are waiting have been written, so another
+     * SearchHistory can open it. The searches that were loaded can still be suggested, but
+     * changes are no longer kept.
+     */
+    public void close(){
+        if(mClosed){
+            return;
+        }
+        mClosed = true;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(mBuffer != null){
+                    mBuffer.force();
+                    //The mapping is released once the buffer is garbage collected
+                    mBuffer = null;
+                }
+                synchronized (sOpenFiles) {
+                    sOpenFiles.remove(mFile.getAbsolutePath());
+                }
+            }
+        });
+    }
+
+    @Override
+    public void recordSearch(String term) {
+        final String search = term.trim();
+        if(mClosed || search.isEmpty()){
+            return;
+        }
+        final long time = System.currentTimeMillis();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SearchHistory.this) {
+                    applySearch(search, time, 1);
+                }
+                append(TYPE_SEARCH, time, 1, search);
+            }
+        });
+    }
+
+    /**
+     * Removes a search from the history
+     * @param term The search to remove
+     */
+    public void remove(String term){
+        final String search = term.trim();
+        if(mClosed){
+            return;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SearchHistory.this) {
+                    mEntries.remove(normalize(search));
+                }
+                append(TYPE_REMOVE, System.currentTimeMillis(), 0, search);
+            }
+        });
+    }
+
+    /**
+     * Removes all the searches from the history
+     */
+    public void clear(){
+        if(mClosed){
+            return;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SearchHistory.this) {
+                    mEntries.clear();
+                }
+                append(TYPE_CLEAR, System.currentTimeMillis(), 0, "");
+            }
+        });
+    }
+
+    /**
+     * Gets the most recent searches that start with the prefix, waiting for the history to load
+     * if needed. Should not be called on the main thread.
+     * @param prefix The start of the searches, ignoring case. Empty for all searches
+     * @param limit The most searches to return
+     * @return The searches, most recent first
+     */
+    public List<Suggestion> getRecentSearches(String prefix, int limit){
+        try {
+            mLoaded.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        String key = normalize(prefix.trim());
+        long now = System.currentTimeMillis();
+        ArrayList<Suggestion> results = new ArrayList<>();
+        synchronized (this) {
+            ArrayList<Entry> entries = new ArrayList<>(mEntries.values());
+            ListIterator<Entry> iterator = entries.listIterator(entries.size());
+            while(iterator.hasPrevious() && results.size() < limit){
+                Entry entry = iterator.previous();
+                if(entry.mKey.startsWith(key)){
+                    results.add(entry.toSuggestion(mIconResId, now));
+                }
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public List<Suggestion> onQuerySuggestions(SuggestionQuery query) {
+        return getRecentSearches(query.getTerm(), query.getLimit());
+    }
+
+    /**
+     * Must hold the lock on this
+     */
+    private void applySearch(String term, long time, int count){
+        String key = normalize(term);
+        Entry entry = mEntries.remove(key);
+        if(entry == null){
+            entry = new Entry(key, term);
+        }
+        entry.mTerm = term;
+        entry.mTime = Math.max(entry.mTime, time);
+        entry.mCount += count;
+        //Re-adding moves it to the end, as the most recent search
+        mEntries.put(key, entry);
+        trim();
+    }
+
+    private void trim(){
+        Iterator<Entry> iterator = mEntries.values().iterator();
+        while(mEntries.size() > mMaxEntries && iterator.hasNext()){
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Maps the file and replays the records in it. Runs on the history thread.
+     */
+    private void load(){
+        try {
+            mBuffer = map(mFile);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open the search history", e);
+            return;
+        }
+
+        if(mBuffer.getInt(0) != MAGIC || mBuffer.getInt(4) != VERSION){
+            //A new file, or one from a version that can not be read
+            writeHeader(mBuffer);
+            return;
+        }
+
+        mBuffer.position(HEADER_SIZE);
+        try {
+            while(mBuffer.remaining() >= 4){
+                int start = mBuffer.position();
+                int size = mBuffer.getInt();
+                if(size < RECORD_FIELDS_SIZE || size > mBuffer.remaining()){
+                    //The end of the log, or a record that was cut off
+                    mBuffer.position(start);
+                    break;
+                }
+                byte type = mBuffer.get();
+                long time = mBuffer.getLong();
+                int count = mBuffer.getInt();
+                byte[] bytes = new byte[size - RECORD_FIELDS_SIZE];
+                mBuffer.get(bytes);
+                replay(type, time, count, new String(bytes, UTF_8));
+            }
+        } catch (BufferUnderflowException e) {
+            Log.w(TAG, "Search history ended in the middle of a record", e);
+        }
+    }
+
+    private void replay(byte type, long time, int count, String term){
+        synchronized (this) {
+            switch (type) {
+                case TYPE_SEARCH:
+                    applySearch(term, time, count);
+                    break;
+                case TYPE_REMOVE:
+                    mEntries.remove(normalize(term));
+                    break;
+                case TYPE_CLEAR:
+                    mEntries.clear();
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Appends a record to the log, compacting it first if it is full. Runs on the history thread.
+     */
+    private void append(byte type, long time, int count, String term){
+        if(mBuffer == null){
+            return;
+        }
+        byte[] bytes = term.getBytes(UTF_8);
+        int size = RECORD_FIELDS_SIZE + bytes.length;
+        if(type == TYPE_CLEAR || mBuffer.remaining() < size + 4){
+            compact();
+            if(type == TYPE_CLEAR || mBuffer == null){
+                //The compacted log already has the change
+                return;
+            }
+            if(mBuffer.remaining() < size + 4){
+                Log.w(TAG, "Search is too long to record");
+                return;
+            }
+        }
+        int start = mBuffer.position();
+        mBuffer.position(start + 4);
+        mBuffer.put(type);
+        mBuffer.putLong(time);
+        mBuffer.putInt(count);
+        mBuffer.put(bytes);
+        markEnd(mBuffer);
+        //The size is written last, so a record cut off by the process dying is never read
+        mBuffer.putInt(start, size);
+    }
+
+    /**
+     * Rewrites the log with one record for each search in the history. Runs on the history thread.
+     */
+    private void compact(){
+        ArrayList<Entry> entries;
+        synchronized (this) {
+            entries = new ArrayList<>(mEntries.size());
+            for(Entry entry : mEntries.values()){
+                entries.add(entry.copy());
+            }
+        }
+
+        File temp = new File(mFile.getPath() + ".tmp");
+        try {
+            MappedByteBuffer buffer = map(temp);
+            writeHeader(buffer);
+            for(Entry entry : entries){
+                byte[] bytes = entry.mTerm.getBytes(UTF_8);
+                if(buffer.remaining() < RECORD_FIELDS_SIZE + bytes.length + 4){
+                    break;
+                }
+                buffer.putInt(RECORD_FIELDS_SIZE + bytes.length);
+                buffer.put(TYPE_SEARCH);
+                buffer.putLong(entry.mTime);
+                buffer.putInt(entry.mCount);
+                buffer.put(bytes);
+            }
+            markEnd(buffer);
+            buffer.force();
+            if(!temp.renameTo(mFile)){
+                throw new IOException("Unable to replace " + mFile);
+            }
+            mBuffer = buffer;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to compact the search history", e);
+            //Keep appending to the old log if there is room
+            if(!temp.delete()){
+                Log.w(TAG, "Unable to delete " + temp);
+            }
+        }
+    }
+
+    private MappedByteBuffer map(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            //The mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, mCapacity);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private static void writeHeader(MappedByteBuffer buffer){
+        buffer.clear();
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        //Mark the log as empty, in case the file held something else before
+        markEnd(buffer);
+    }
+
+    /**
+     * Writes an empty record size after the last record, in case the file held something else
+     * after it
+     */
+    private static void markEnd(MappedByteBuffer buffer){
+        if(buffer.remaining() >= 4){
+            buffer.putInt(buffer.position(), 0);
+        }
+    }
+
+    private static String normalize(String term){
+        return TextFolder.fold(term);
+    }
+
+    private static class Entry {
+        final String mKey;
+        String mTerm;
+        long mTime;
+        int mCount;
+
+        Entry(String key, String term){
+            mKey = key;
+            mTerm = term;
+        }
+
+        Entry copy(){
+            Entry entry = new Entry(mKey, mTerm);
+            entry.mTime = mTime;
+            entry.mCount = mCount;
+            return entry;
+        }
+
+        Suggestion toSuggestion(int iconResId, long now){
+            //A search from the future, after the clock was changed, counts as made now
+            double age = Math.max(0, now - mTime);
+            Suggestion suggestion = new Suggestion(mKey.hashCode(), mTerm,
+                    Math.pow(0.5, age / RECENCY_HALF_LIFE));
+            if(iconResId != 0){
+                suggestion.setIcon(iconResId);
+            }
+            return suggestion;
+        }
+    }
+}
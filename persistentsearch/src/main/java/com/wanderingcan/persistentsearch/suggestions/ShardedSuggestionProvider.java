@@ -0,0 +1,280 @@
+/*
+ * Copyright 2015 Christopher Beda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wanderingcan.persistentsearch.suggestions;
+
+import android.os.SystemClock;
+
+import com.wanderingcan.persistentsearch.SearchExecutors;
+import com.wanderingcan.persistentsearch.Suggestion;
+import com.wanderingcan.persistentsearch.SuggestionProvider;
+import com.wanderingcan.persistentsearch.SuggestionQuery;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A SuggestionProvider that splits a large list of Suggestions into shards, searches the shards
+ * at the same time on all the cores, and merges the best suggestions of every shard, highest
+ * weight first.
+ * <p>
+ * Each shard is its own SuggestionProvider, such as a {@link PrefixTrie} or an
+ * {@link InvertedIndex}, holding part of the Suggestions. If the query has a deadline, or a
+ * timeout has been set, shards that have not finished by the sooner of the two are left out so
+ * a slow shard never holds up the suggestions. Otherwise every shard is waited for. If the query
+ * takes partial results, the merged results are published at the deadline instead, and refined
+ * once the late shards finish. Only merged lists are passed on, the SearchMenu never shows the
+ * results of a single shard. A shard that is left out can still be running when the next query
+ * starts, so the shard providers must be safe to use from many threads at once.
+ * </p>
+ */
+public class ShardedSuggestionProvider implements SuggestionProvider {
+
+    /**
+     * Used with {@link #setTimeout(long)} to wait for the shards until the deadline of the
+     * query, or until they all finish if the query has no deadline
+     */
+    public static final long NO_TIMEOUT = 0;
+
+    private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Creates the SuggestionProvider for one shard
+     */
+    public interface ShardFactory {
+
+        /**
+         * Creates a SuggestionProvider that searches the Suggestions of one shard
+         * @param suggestions The Suggestions in the shard
+         * @return The SuggestionProvider for the shard
+         */
+        SuggestionProvider createShard(Collection<Suggestion> suggestions);
+    }
+
+    private final List<SuggestionProvider> mShards;
+    private volatile long mTimeout = NO_TIMEOUT;
+
+    /**
+     * Constructor for ShardedSuggestionProvider with one shard for each core
+     * @param suggestions The Suggestions to split into shards
+     * @param factory Creates the SuggestionProvider for each shard
+     */
+    public ShardedSuggestionProvider(Collection<Suggestion> suggestions, ShardFactory factory){
+        this(suggestions, CPU_COUNT, factory);
+    }
+
+    /**
+     * Constructor for ShardedSuggestionProvider
+     * @param suggestions The Suggestions to split into shards
+     * @param shardCount The number of shards to split the Suggestions into
+     * @param factory Creates the SuggestionProvider for each shard
+     */
+    public ShardedSuggestionProvider(Collection<Suggestion> suggestions, int shardCount,
+                                     ShardFactory factory){
+        shardCount = Math.max(1, shardCount);
+        ArrayList<List<Suggestion>> parts = new ArrayList<>(shardCount);
+        for(int i = 0; i < shardCount; i++){
+            parts.add(new ArrayList<Suggestion>(suggestions.size() / shardCount + 1));
+        }
+        //Dealing them out keeps the shards the same size, and spreads similar titles across them
+        int index = 0;
+        for(Suggestion suggestion : suggestions){
+            parts.get(index++ % shardCount).add(suggestion);
+        }
+        ArrayList<SuggestionProvider> shards = new ArrayList<>(shardCount);
+        for(List<Suggestion> part : parts){
+            shards.add(factory.createShard(part));
+        }
+        mShards = Collections.unmodifiableList(shards);
+    }
+
+    /**
+     * Constructor for ShardedSuggestionProvider with shards that were already split
+     * @param shards The SuggestionProviders for each shard
+     */
+    public ShardedSuggestionProvider(List<? extends SuggestionProvider> shards){
+        mShards = Collections.unmodifiableList(new ArrayList<>(shards));
+    }
+
+    /**
+     * Sets how long to wait for the shards before merging the ones that have finished, even if
+     * the query has no deadline
+     * @param timeoutMillis The time in milliseconds, or {@link #NO_TIMEOUT}
+     */
+    public void setTimeout(long timeoutMillis){
+        mTimeout = timeoutMillis;
+    }
+
+    /**
+     * Gets the shards the Suggestions were split into
+     * @return The SuggestionProvider for each shard
+     */
+    public List<SuggestionProvider> getShards(){
+        return mShards;
+    }
+
+    @Override
+    public List<Suggestion> onQuerySuggestions(SuggestionQuery query) {
+        long deadline = query.getDeadline();
+        long timeout = mTimeout;
+        if(timeout != NO_TIMEOUT){
+            long timeoutDeadline = SystemClock.uptimeMillis() + timeout;
+            deadline = deadline == SuggestionQuery.NO_DEADLINE ?
+                    timeoutDeadline : Math.min(deadline, timeoutDeadline);
+        }
+        //The deadline is kept here, where the partial results of all the shards can be merged
+        final SuggestionQuery shardQuery = query.withoutDeadline();
+        //Every shard runs on the pool, so this thread is free to stop waiting at the deadline
+        ArrayList<Future<List<Suggestion>>> futures = new ArrayList<>(mShards.size());
+        for(final SuggestionProvider shard : mShards){
+            futures.add(SearchExecutors.shards().submit(new Callable<List<Suggestion>>() {
+                @Override
+                public List<Suggestion> call() throws Exception {
+                    return shardQuery.isCanceled() ?
+                            null : sortByWeight(shard.onQuerySuggestions(shardQuery));
+                }
+            }));
+        }
+
+        ArrayList<List<Suggestion>> results = new ArrayList<>(mShards.size());
+        ArrayList<Future<List<Suggestion>>> late = new ArrayList<>();
+        for(Future<List<Suggestion>> future : futures){
+            //With no deadline every shard is waited for
+            long remaining = deadline == SuggestionQuery.NO_DEADLINE ?
+                    Long.MAX_VALUE : Math.max(0, deadline - SystemClock.uptimeMillis());
+            List<Suggestion> result = getResult(future, remaining);
+            if(result != null || future.isDone()){
+                results.add(result);
+            } else {
+                late.add(future);
+            }
+        }
+
+        if(!late.isEmpty()){
+            if(query.publishPartialResults(merge(results, query.getLimit()))){
+                //Refine the partial results once the late shards finish
+                for(Future<List<Suggestion>> future : late){
+                    results.add(getResult(future, Long.MAX_VALUE));
+                }
+            } else {
+                //Too slow for this query, their suggestions are left out
+                query.markIncomplete();
+                for(Future<List<Suggestion>> future : late){
+                    future.cancel(true);
+                }
+            }
+        }
+        query.getCancellationSignal().throwIfCanceled();
+        return merge(results, query.getLimit());
+    }
+
+    /**
+     * Waits for the results of a shard
+     * @return The results, or null if the shard did not finish in time
+     */
+    private static List<Suggestion> getResult(Future<List<Suggestion>> future, long timeoutMillis){
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            return null;
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof RuntimeException){
+                throw (RuntimeException) cause;
+            } else if(cause instanceof Error){
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Sorts the results of a shard highest weight first for {@link #merge(List, int)}, as shards
+     * such as a {@link FuzzyMatcher} return them in their own order
+     */
+    private static List<Suggestion> sortByWeight(List<Suggestion> results){
+        if(results == null){
+            return null;
+        }
+        for(int i = 1; i < results.size(); i++){
+            if(Suggestion.WEIGHT_ORDER.compare(results.get(i - 1), results.get(i)) > 0){
+                ArrayList<Suggestion> sorted = new ArrayList<>(results);
+                Collections.sort(sorted, Suggestion.WEIGHT_ORDER);
+                return sorted;
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Merges the shard results, which are each sorted highest weight first, with a heap of the
+     * next suggestion of each shard
+     */
+    static List<Suggestion> merge(List<List<Suggestion>> results, int limit){
+        PriorityQueue<Cursor> heap = new PriorityQueue<>(Math.max(1, results.size()));
+        for(List<Suggestion> result : results){
+            if(result != null && !result.isEmpty()){
+                heap.add(new Cursor(result));
+            }
+        }
+        ArrayList<Suggestion> merged = new ArrayList<>();
+        while(merged.size() < limit && !heap.isEmpty()){
+            Cursor cursor = heap.poll();
+            merged.add(cursor.current());
+            if(cursor.moveToNext()){
+                heap.add(cursor);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * The next suggestion of one shard's results
+     */
+    private static class Cursor implements Comparable<Cursor> {
+        private final List<Suggestion> mSuggestions;
+        private int mIndex;
+
+        Cursor(List<Suggestion> suggestions){
+            mSuggestions = suggestions;
+        }
+
+        Suggestion current(){
+            return mSuggestions.get(mIndex);
+        }
+
+        boolean moveToNext(){
+            return ++mIndex < mSuggestions.size();
+        }
+
+        @Override
+        public int compareTo(Cursor another) {
+            return Suggestion.WEIGHT_ORDER.compare(current(), another.current());
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2015 Christopher Beda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wanderingcan.persistentsearch.suggestions;
+
+/**
+ * Folds text for matching, so titles and search terms match ignoring case and accents. "Caf&eacute;"
+ * and "CAFE" both fold to "cafe".
+ * <p>
+ * Each char is folded on its own through a table, so folding never changes the length of the
+ * text, and text can be folded into a reused buffer without making a String. Latin letters with
+ * accents, up to the end of Latin Extended-B, fold to their base letter. Other chars are only
+ * folded to lower case. Text is expected to be in its composed form, as keyboards type it.
+ * </p>
+ * Suggestion engines fold each title once when it is added and keep the folded form, then fold
+ * each search term once into a {@link Buffer}, so matching does not allocate.
+ */
+public final class TextFolder {
+
+    private static final char TABLE_START = '\u00c0';
+    //The folded form of every char from TABLE_START up to the end of Latin Extended-B
+    private static final String TABLE =
+            "aaaaaa\u00e6ceeeeiiii" +
+            "\u00f0nooooo\u00d7ouuuuy\u00fe\u00df" +
+            "aaaaaa\u00e6ceeeeiiii" +
+            "\u00f0nooooo\u00f7ouuuuy\u00fey" +
+            "aaaaaaccccccccdd" +
+            "ddeeeeeeeeeegggg" +
+            "gggghhhhiiiiiiii" +
+            "ii\u0133\u0133jjkk\u0138lllllll" +
+            "lllnnnnnn\u0149\u014b\u014boooo" +
+            "oo\u0153\u0153rrrrrrssssss" +
+            "ssttttttuuuuuuuu" +
+            "uuuuwwyyyzzzzzzs" +
+            "b\u0253\u0183\u0183\u0185\u0185\u0254cc\u0256\u0257dd\u018d\u01dd\u0259" +
+            "\u025bffg\u0263\u0195\u0269\u0268kkl\u019b\u026f\u0272\u019e\u0275" +
+            "oo\u01a3\u01a3pp\u0280\u01a8\u01a8\u0283\u01aa\u01abtt\u0288u" +
+            "u\u028a\u028byyzz\u0292\u01b9\u01b9\u01ba\u01bb\u01bd\u01bd\u01be\u01bf" +
+            "\u01c0\u01c1\u01c2\u01c3\u01c6\u01c6\u01c6\u01c9\u01c9\u01c9\u01cc\u01cc\u01ccaai" +
+            "ioouuuuuuuuuu\u01ddaa" +
+            "aa\u00e6\u00e6ggggkkoooo\u0292\u0292" +
+            "j\u01f3\u01f3\u01f3gg\u0195\u01bfnnaa\u00e6\u00e6oo" +
+            "aaaaeeeeiiiioooo" +
+            "rrrruuuusstt\u021d\u021dhh" +
+            "\u019e\u0221\u0223\u0223\u0225\u0225aaeeoooooo" +
+            "ooyy\u0234\u0235\u0236\u0237\u0238\u0239\u2c65\u023c\u023cl\u2c66\u023f" +
+            "\u0240\u0242\u0242b\u0289\u028ceejj\u024b\u024brryy";
+
+    private TextFolder(){
+        //Private Constructor
+    }
+
+    /**
+     * Folds a char to lower case without accents
+     * @param c The char to fold
+     * @return The folded char
+     */
+    public static char fold(char c){
+        if(c < TABLE_START){
+            return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+        }
+        int index = c - TABLE_START;
+        if(index < TABLE.length()){
+            return TABLE.charAt(index);
+        }
+        return Character.toLowerCase(c);
+    }
+
+    /**
+     * Folds text to lower case without accents
+     * @param text The text to fold, can be null
+     * @return The folded text, empty if the text is null
+     */
+    public static String fold(CharSequence text){
+        return text == null ? "" : new String(foldToArray(text));
+    }
+
+    /**
+     * Folds text into a new array, to keep as the folded form of a title
+     * @param text The text to fold
+     * @return The folded chars
+     */
+    public static char[] foldToArray(CharSequence text){
+        char[] folded = new char[text.length()];
+        for(int i = 0; i < folded.length; i++){
+            folded[i] = fold(text.charAt(i));
+        }
+        return folded;
+    }
+
+    /**
+     * Returns if the folded text starts with the folded prefix
+     */
+    public static boolean startsWith(char[] text, int textLength, char[] prefix, int prefixLength){
+        if(prefixLength > textLength){
+            return false;
+        }
+        for(int i = 0; i < prefixLength; i++){
+            if(text[i] != prefix[i]){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns if the folded text contains the folded key anywhere
+     */
+    public static boolean contains(char[] text, int textLength, char[] key, int keyLength){
+        if(keyLength == 0){
+            return true;
+        }
+        char first = key[0];
+        int last = textLength - keyLength;
+        for(int i = 0; i <= last; i++){
+            if(text[i] != first){
+                continue;
+            }
+            int j = 1;
+            while(j < keyLength && text[i + j] == key[j]){
+                j++;
+            }
+            if(j == keyLength){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A reused buffer to fold search terms into
+     */
+    public static class Buffer {
+        private char[] mChars = new char[32];
+        private int mLength;
+
+        /**
+         * Folds the text into the buffer, replacing what it held
+         * @param text The text to fold
+         * @return This buffer
+         */
+        public Buffer set(CharSequence text){
+            int length = text.length();
+            if(length > mChars.length){
+                mChars = new char[Math.max(length, mChars.length * 2)];
+            }
+            for(int i = 0; i < length; i++){
+                mChars[i] = fold(text.charAt(i));
+            }
+            mLength = length;
+            return this;
+        }
+
+        /**
+         * Gets the folded chars, only the first {@link #length()} are used
+         * @return The chars of the buffer
+         */
+        public char[] chars(){
+            return mChars;
+        }
+
+        /**
+         * Gets the number of folded chars in the buffer
+         * @return The length of the folded text
+         */
+        public int length(){
+            return mLength;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2015 Christopher Beda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wanderingcan.persistentsearch.suggestions;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Keeps the best k of the items offered to it in a bounded heap, without sorting all of them
+ * @param <T> The type of the items
+ */
+final class TopK<T> {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final int mLimit;
+    private final Comparator<? super T> mOrder;
+    private final PriorityQueue<T> mHeap;
+
+    /**
+     * @param limit The number of items to keep
+     * @param order The order of the items, best first
+     */
+    TopK(int limit, Comparator<? super T> order){
+        mLimit = limit;
+        mOrder = order;
+        //The worst item kept is at the head of the heap, so it can be replaced
+        mHeap = new PriorityQueue<>(Math.max(1, Math.min(limit, INITIAL_CAPACITY)),
+                Collections.reverseOrder(order));
+    }
+
+    /**
+     * Offers an item, it is kept if it is better than the worst item kept
+     * @return True if the item was kept, false otherwise
+     */
+    boolean offer(T item){
+        if(mLimit <= 0){
+            return false;
+        }
+        if(mHeap.size() < mLimit){
+            mHeap.add(item);
+            return true;
+        }
+        if(mOrder.compare(item, mHeap.peek()) < 0){
+            mHeap.poll();
+            mHeap.add(item);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns if the limit has been reached
+     */
+    boolean isFull(){
+        return mHeap.size() >= mLimit;
+    }
+
+    /**
+     * Gets the worst item kept
+     * @return The worst item kept, null if none are kept
+     */
+    T worst(){
+        return mHeap.peek();
+    }
+
+    int size(){
+        return mHeap.size();
+    }
+
+    /**
+     * Gets the items kept, best first
+     */
+    List<T> toList(){
+        ArrayList<T> list = new ArrayList<>(mHeap);
+        Collections.sort(list, mOrder);
+        return list;
+    }
+}
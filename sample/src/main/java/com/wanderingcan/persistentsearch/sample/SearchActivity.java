@@ -18,6 +18,9 @@ import android.widget.Button;
 
 import com.wanderingcan.persistentsearch.PersistentSearchView;
 import com.wanderingcan.persistentsearch.SearchMenuItem;
+import com.wanderingcan.persistentsearch.Suggestion;
+import com.wanderingcan.persistentsearch.SuggestionProvider;
+import com.wanderingcan.persistentsearch.SuggestionQuery;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -51,8 +54,6 @@ public class SearchActivity extends AppCompatActivity {
         mSearchView.setOnSearchListener(new PersistentSearchView.OnSearchListener() {
             @Override
             public void onSearchOpened() {
-                mSearchView.getSearchMenu().addSearchMenuItem(2, "Suggestion")
-                        .setIcon(R.drawable.ic_globe);
                 if(!ViewUtils.isLayoutRtl(mSearchView)) {
                     mSearchView.setNavigationDrawable(ContextCompat
                             .getDrawable(SearchActivity.this, R.drawable.ic_action_arrow_left));
@@ -69,19 +70,11 @@ public class SearchActivity extends AppCompatActivity {
 
             @Override
             public void onSearchCleared() {
-                mSearchView.getSearchMenu()
-                        .removeSearchMenuItem(mSearchView.getSearchMenu().getSearchMenuItem(1));
             }
 
             @Override
             public void onSearchTermChanged(CharSequence term) {
-                if(mSearchView.getSearchMenu().getSearchMenuItem(1) != null) {
-                    mSearchView.getSearchMenu().getSearchMenuItem(1)
-                            .setTitle(term.toString());
-                }else{
-                    mSearchView.getSearchMenu().addSearchMenuItem(1, term.toString(), 1)
-                            .setIcon(R.drawable.ic_history);
-                }
+                //The SearchMenu is filled by the SuggestionProvider below
             }
 
             @Override
@@ -90,6 +83,18 @@ public class SearchActivity extends AppCompatActivity {
                         .show();
             }
         });
+        mSearchView.setSuggestionProvider(new SuggestionProvider() {
+            @Override
+            public List<Suggestion> onQuerySuggestions(SuggestionQuery query) {
+                //Called on a background thread, so slow lookups do not block typing
+                List<Suggestion> suggestions = new ArrayList<>();
+                if(!query.getTerm().isEmpty()){
+                    suggestions.add(new Suggestion(1, query.getTerm()).setIcon(R.drawable.ic_history));
+                }
+                suggestions.add(new Suggestion(2, "Suggestion").setIcon(R.drawable.ic_globe));
+                return suggestions;
+            }
+        });
         mSearchView.setOnIconClickListener(new PersistentSearchView.OnIconClickListener() {
             @Override
             public void OnNavigationIconClick() {